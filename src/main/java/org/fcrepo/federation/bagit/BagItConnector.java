@@ -16,25 +16,39 @@
 
 package org.fcrepo.federation.bagit;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static org.modeshape.jcr.api.JcrConstants.JCR_CONTENT;
 import static org.modeshape.jcr.api.JcrConstants.JCR_DATA;
 import static org.modeshape.jcr.api.JcrConstants.NT_FOLDER;
 import static org.modeshape.jcr.api.JcrConstants.NT_RESOURCE;
 import gov.loc.repository.bagit.impl.FileBagFile;
-import gov.loc.repository.bagit.v0_97.impl.BagConstantsImpl;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.jcr.NamespaceRegistry;
 import javax.jcr.RepositoryException;
@@ -43,23 +57,28 @@ import org.apache.poi.util.TempFile;
 import org.infinispan.schematic.document.Document;
 import org.modeshape.connector.filesystem.FileSystemConnector;
 import org.modeshape.jcr.JcrI18n;
-import org.modeshape.jcr.JcrLexicon;
 import org.modeshape.jcr.api.JcrConstants;
 import org.modeshape.jcr.api.nodetype.NodeTypeManager;
-import org.modeshape.jcr.api.value.DateTime;
 import org.modeshape.jcr.cache.DocumentStoreException;
 import org.modeshape.jcr.federation.spi.ConnectorChangeSet;
 import org.modeshape.jcr.federation.spi.DocumentChanges;
 import org.modeshape.jcr.federation.spi.DocumentReader;
 import org.modeshape.jcr.federation.spi.DocumentWriter;
+import org.modeshape.jcr.federation.spi.PageKey;
+import org.modeshape.jcr.federation.spi.PageWriter;
+import org.modeshape.jcr.federation.spi.Pageable;
+import org.modeshape.jcr.value.BinaryKey;
 import org.modeshape.jcr.value.BinaryValue;
+import org.modeshape.jcr.value.Name;
 import org.modeshape.jcr.value.Property;
 import org.modeshape.jcr.value.PropertyFactory;
-import org.modeshape.jcr.value.PropertyType;
 import org.modeshape.jcr.value.ValueFactories;
-import org.modeshape.jcr.value.basic.BasicPropertyFactory;
+import org.modeshape.jcr.value.binary.ExternalBinaryValue;
 
-public class BagItConnector extends FileSystemConnector {
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+public class BagItConnector extends FileSystemConnector implements Pageable {
 
     private static final String BAGIT_ARCHIVE_TYPE = "bagit:archive";
 
@@ -83,11 +102,47 @@ public class BagItConnector extends FileSystemConnector {
 
     private static final String JCR_ENCODING = "jcr:encoding";
 
+    /**
+     * Prefixes the algorithm in the names of the digest properties of
+     * payload files, e.g. bagit:checksum.md5.
+     */
+    private static final String BAGIT_CHECKSUM_PREFIX = "bagit:checksum.";
+
+    private static final String SHA1 = "sha1";
+
     private static final String JCR_CONTENT_SUFFIX = JCR_PATH_DELIMITER +
             JCR_CONTENT;
 
-    private static final int JCR_CONTENT_SUFFIX_LENGTH = JCR_CONTENT_SUFFIX
-            .length();
+    /**
+     * The number of ids in one directory from which a bulk request lists the
+     * directory once rather than stat each id; below it, the stats are
+     * cheaper than a scan of a possibly large directory.
+     */
+    private static final int BULK_SCAN_THRESHOLD = 8;
+
+    /**
+     * How many directory entries a bulk request may read per id it checks.
+     * The present ids are stat'ed anyway, so the scan only pays off where
+     * the ids are a fair share of the directory; in a larger directory it
+     * is abandoned after this many entries per id and the ids are stat'ed.
+     */
+    private static final int BULK_SCAN_ENTRIES_PER_ID = 16;
+
+    /**
+     * Only include a child if we can access and read the file. Permissions
+     * might prevent us from reading the file, and the file might not exist if
+     * it is a broken symlink (see MODE-1768 for details). One attribute read
+     * per entry answers all three questions.
+     */
+    private static final DirectoryStream.Filter<Path> READABLE_ENTRIES =
+            new DirectoryStream.Filter<Path>() {
+
+                @Override
+                public boolean accept(final Path entry) {
+                    final FileAttributes attrs = FileAttributes.read(entry);
+                    return attrs != null && attrs.isAccessible();
+                }
+            };
 
     /**
      * A boolean flag that specifies whether this connector should add the
@@ -98,6 +153,224 @@ public class BagItConnector extends FileSystemConnector {
      */
     private final boolean addMimeTypeMixin = false;
 
+    /**
+     * The maximum number of built documents kept in the connector-side
+     * {@link DocumentCache}, which lets us keep ModeShape's cacheTtlSeconds at
+     * 0 without rebuilding every document on every read. A value of 0
+     * disables the cache. This is set via reflection.
+     */
+    private int documentCacheSize = 10000;
+
+    /**
+     * The maximum total weight of the {@link DocumentCache}, where a document
+     * weighs one plus the number of child references it holds. This is set
+     * via reflection.
+     */
+    private long documentCacheWeight = 1000000L;
+
+    private DocumentCache documentCache = new DocumentCache(0, 0L);
+
+    /**
+     * The number of children written into a bag or folder document, and into
+     * each further page of them fetched through {@link #getChildren(PageKey)}.
+     * This is set via reflection.
+     */
+    private int pageSize = 1000;
+
+    /**
+     * The number of paused directory streams the {@link DirectoryPager}
+     * keeps open for the next page of a large directory. This is set via
+     * reflection.
+     */
+    private int pagerCursors = 64;
+
+    /**
+     * How long, in milliseconds, a paused directory stream may go unused
+     * before it is closed. This is set via reflection.
+     */
+    private long pagerIdleMillis = 60000L;
+
+    private DirectoryPager directoryPager = new DirectoryPager(0, 0L);
+
+    /**
+     * The number of threads reading file attributes for
+     * {@link #getDocumentsByIds(Collection)}. This is set via reflection.
+     */
+    private int attributeReaderThreads = 8;
+
+    private ExecutorService attributeReaders;
+
+    /**
+     * The number of children of a bag to build into the document cache in
+     * the background when the bag is opened; 0 (the default) turns
+     * prefetching off. This is set via reflection.
+     */
+    private int prefetchCount = 0;
+
+    /**
+     * The number of bags prefetched at once. This is set via reflection.
+     */
+    private int prefetchConcurrency = 2;
+
+    private Prefetcher prefetcher;
+
+    /**
+     * The bags in the root directory, from which the projection root is
+     * listed; loaded in
+     * {@link #initialize(NamespaceRegistry, NodeTypeManager)}.
+     */
+    private BagRegistry bagRegistry = new BagRegistry();
+
+    /**
+     * Whether the last known state of each bag is kept in a
+     * {@link BagStateIndex}, so that a restart announces only the bags that
+     * changed while the connector was down. This is set via reflection.
+     */
+    private boolean persistBagState = true;
+
+    /**
+     * Where the {@link BagStateIndex} is kept; by default, the file
+     * .bagit-state in the root directory. This is set via reflection.
+     */
+    private String bagStateFile;
+
+    private BagStateIndex bagStateIndex;
+
+    /**
+     * How long, in milliseconds, a bag must go without filesystem events
+     * before the {@link ManifestMonitor} sends one net node event for it;
+     * 0 sends every event at once. This is set via reflection.
+     */
+    private long eventQuietMillis = 1000L;
+
+    /**
+     * The number of threads handling bag events; events for one bag are
+     * always handled in order on the same thread. This is set via
+     * reflection.
+     */
+    private int eventThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Whether the {@link ManifestMonitor} watches every directory under the
+     * data/ of each bag, so payload changes show up without a manifest
+     * change. Off by default: on Linux each directory takes an inotify
+     * watch, and the per-user limit (fs.inotify.max_user_watches, often
+     * 8192) is shared with every other process of the user; directories
+     * beyond it go unwatched, with a warning. Raise the limit before turning
+     * this on for large payload trees. This is set via reflection.
+     */
+    private boolean watchPayloadDirectories = false;
+
+    /**
+     * The number of threads that watch the bags already in the root, and
+     * check them for manifests, when the {@link ManifestMonitor} starts. This
+     * is set via reflection.
+     */
+    private int startupScanThreads = 8;
+
+    /**
+     * How the {@link ManifestMonitor} finds changes: "watch" to use the
+     * filesystem's watch service, or "poll" to rescan with a
+     * {@link PollingScanner}, for filesystems (NFS, FUSE) whose changes a
+     * watch service misses. This is set via reflection.
+     */
+    private String monitorMode = "watch";
+
+    /**
+     * The seconds between the end of one scan and the start of the next in
+     * poll mode. This is set via reflection.
+     */
+    private int pollIntervalSeconds = 30;
+
+    /**
+     * The number of bags scanned at a time in poll mode. This is set via
+     * reflection.
+     */
+    private int pollThreads = 4;
+
+    /**
+     * The number of bag events that makes the {@link ChangeSetBatcher}
+     * publish a change set at once. This is set via reflection.
+     */
+    private int changeBatchSize = 100;
+
+    /**
+     * How long, in milliseconds, a bag event may wait for others to be
+     * published with; 0 publishes every event on its own. This is set via
+     * reflection.
+     */
+    private long changeBatchMillis = 200L;
+
+    private ChangeSetBatcher changeBatcher;
+
+    /**
+     * The maximum number of missing ids remembered by the
+     * {@link MissingIdCache}; 0 disables it. This is set via reflection.
+     */
+    private int missingIdCacheSize = 10000;
+
+    /**
+     * How long, in seconds, a missing id is trusted without a create event
+     * under its directory. This is set via reflection.
+     */
+    private int missingIdCacheSeconds = 60;
+
+    private MissingIdCache missingIds = new MissingIdCache(0, 0L);
+
+    /**
+     * How long, in seconds, a resolved owner name (jcr:createdBy) is reused
+     * for other files with the same uid. This is set via reflection.
+     */
+    private int ownerCacheSeconds = 300;
+
+    private OwnerCache ownerCache = new OwnerCache(0L);
+
+    /**
+     * Where the sidecar indexes of payload manifests are kept, by default
+     * bagit-manifest-index in the temporary directory; not under the root,
+     * where a directory would be taken for a bag. This is set via reflection.
+     */
+    private String manifestIndexDirectory;
+
+    /**
+     * The number of manifest indexes kept open. This is set via reflection.
+     */
+    private int manifestIndexCacheSize = 256;
+
+    private ManifestIndexCache manifestIndexes;
+
+    /**
+     * Whether a payload file no sha1 manifest lists gets a binary key hashed
+     * from its path, size and modification time, instead of one hashed from
+     * its content, which reads the whole file. Two copies of the same content
+     * then have different keys. This is set via reflection.
+     */
+    private boolean stampBinaryKeys = false;
+
+    /**
+     * The number of bag metadata snapshots kept; the least recently used are
+     * dropped beyond it and read again when next needed. This is set via
+     * reflection.
+     */
+    private int bagSnapshotCacheSize = 10000;
+
+    /**
+     * The metadata snapshots of the bags read recently, by bag id. Entries
+     * are replaced by the {@link ManifestMonitor} when it sees a bag change.
+     */
+    private final Map<String, BagSnapshot> bagSnapshots = Collections
+            .synchronizedMap(new LinkedHashMap<String, BagSnapshot>(16,
+                    0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, BagSnapshot> eldest) {
+                    return size() > bagSnapshotCacheSize;
+                }
+            });
+
     /**
      * The string path for a {@link File} object that represents the top-level
      * directory accessed by this connector. This is set via reflection and is
@@ -120,20 +393,28 @@ public class BagItConnector extends FileSystemConnector {
      */
     private String directoryAbsolutePath;
 
-    private int directoryAbsolutePathLength;
+    /**
+     * Maps node ids to files and back; replaced in
+     * {@link #initialize(NamespaceRegistry, NodeTypeManager)}.
+     */
+    private IdTranslator idTranslator = new IdTranslator(m_directory);
 
     private ExecutorService threadPool;
 
+    private ManifestMonitor monitor;
+
     DocumentWriterFactory m_writerFactory;
 
     public void setDirectoryPath(final String directoryPath) {
         this.directoryPath = directoryPath;
         m_directory = new File(directoryPath);
+        idTranslator = new IdTranslator(m_directory);
     }
 
     public void setDirectory(final File directory) {
         m_directory = directory;
         this.directoryPath = directory.getAbsolutePath();
+        idTranslator = new IdTranslator(m_directory);
     }
 
     @Override
@@ -164,45 +445,349 @@ public class BagItConnector extends FileSystemConnector {
         if (!directoryAbsolutePath.endsWith(File.separator)) {
             directoryAbsolutePath = directoryAbsolutePath + File.separator;
         }
-        directoryAbsolutePathLength =
-                directoryAbsolutePath.length() - File.separator.length(); // does
-                                                                          // NOT
-                                                                          // include
-                                                                          // the
-                                                                          // separator
+        idTranslator = new IdTranslator(m_directory);
 
         rootPath = Paths.get(directoryAbsolutePath);
 
         setExtraPropertiesStore(new BagItExtraPropertiesStore(this));
+        documentCache =
+                new DocumentCache(documentCacheSize, documentCacheWeight);
+        directoryPager = new DirectoryPager(pagerCursors, pagerIdleMillis);
+        missingIds =
+                new MissingIdCache(missingIdCacheSize, TimeUnit.SECONDS
+                        .toMillis(missingIdCacheSeconds));
+        ownerCache =
+                new OwnerCache(TimeUnit.SECONDS.toMillis(ownerCacheSeconds));
+        attributeReaders =
+                Executors.newFixedThreadPool(attributeReaderThreads,
+                        new ThreadFactoryBuilder().setDaemon(true)
+                                .setNameFormat("bagit-attributes-%d").build());
+        changeBatcher =
+                new ChangeSetBatcher(this, changeBatchSize, changeBatchMillis);
+        bagRegistry = new BagRegistry();
+        final int bags = bagRegistry.load(rootPath);
+        getLogger().debug("Found " + bags + " bags in " + rootPath);
+        if (persistBagState) {
+            bagStateIndex =
+                    new BagStateIndex(bagStateFile == null ? rootPath
+                            .resolve(".bagit-state") : Paths.get(bagStateFile));
+            getLogger().debug(
+                    "Known state of " + bagStateIndex.load() + " bags");
+        }
+        final Path indexDirectory =
+                manifestIndexDirectory == null ? Paths.get(System
+                        .getProperty("java.io.tmpdir"), "bagit-manifest-index")
+                        : Paths.get(manifestIndexDirectory);
+        Files.createDirectories(indexDirectory);
+        manifestIndexes =
+                new ManifestIndexCache(indexDirectory, manifestIndexCacheSize);
+        if (prefetchCount > 0) {
+            prefetcher =
+                    new Prefetcher(this, prefetchCount, prefetchConcurrency);
+        }
         getLogger().trace("Initialized. rootPath: {}", rootPath);
         final BlockingQueue<Runnable> workQueue =
                 new ArrayBlockingQueue<Runnable>(1);
         threadPool =
                 new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, workQueue);
         getLogger().trace("Threadpool initialized.");
-        threadPool.execute(new ManifestMonitor(this));
+        monitor = new ManifestMonitor(this);
+        threadPool.execute(monitor);
         getLogger().trace("Monitor thread queued.");
     }
 
     @Override
     public void shutdown() {
-        threadPool.shutdown();
+        // first, so the events it drains are still published
+        if (monitor != null) {
+            monitor.shutdown();
+        }
+        saveBagState();
+        directoryPager.close();
+        if (attributeReaders != null) {
+            attributeReaders.shutdownNow();
+        }
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+        }
+        threadPool.shutdownNow();
+        if (changeBatcher != null) {
+            changeBatcher.shutdown();
+        }
+        getLogger().debug("Filesystem calls: " + IoStatistics.summary());
         getLogger().trace("Threadpool shutdown.");
     }
 
     @Override
     public Document getDocumentById(final String id) {
         getLogger().trace("Entering getDocumentById()...");
-        getLogger().trace("Received request for document: " + id);
-        final File file = fileFor(id);
-        // getLogger().debug(
-        // "Received request for document: " + id + ", resolved to " +
-        // file);
-        if (file == null || isExcluded(file) || !file.exists()) {
+        return getDocumentsByIds(Collections.singleton(id)).get(id);
+    }
+
+    /**
+     * Retrieves many documents at once. Ids are grouped by the directory
+     * their files are in; a large group is checked against one scan of its
+     * directory, as long as the directory is not much larger than the
+     * group, so that missing ids cost no stat of their own, and the
+     * attributes of the rest are read in parallel on a bounded pool before
+     * the documents are built.
+     * 
+     * @param ids the ids of the documents
+     * @return the documents that exist, by id, in the order requested
+     */
+    public Map<String, Document> getDocumentsByIds(
+            final Collection<String> ids) {
+        return getDocuments(ids, false);
+    }
+
+    /**
+     * Builds documents into the cache on behalf of the {@link Prefetcher}.
+     * 
+     * @param ids the ids of the documents
+     * @return the documents that were built, i.e. were not already cached
+     */
+    Map<String, Document> prefetchDocuments(final Collection<String> ids) {
+        return getDocuments(ids, true);
+    }
+
+    private Map<String, Document> getDocuments(final Collection<String> ids,
+            final boolean prefetching) {
+        final Map<String, Document> cachedDocuments =
+                new HashMap<String, Document>(ids.size() * 2);
+        final Map<File, List<String>> groups =
+                new LinkedHashMap<File, List<String>>();
+        final Map<String, File> files = new HashMap<String, File>();
+        for (final String id : ids) {
+            getLogger().trace("Received request for document: " + id);
+            final Document cached = documentCache.get(id);
+            if (cached != null) {
+                if (prefetching) {
+                    continue;
+                }
+                getLogger().trace("Serving document: " + id + " from cache.");
+                if (prefetcher != null) {
+                    prefetcher.requested(id);
+                }
+                cachedDocuments.put(id, cached);
+                continue;
+            }
+            if (missingIds.isMissing(id)) {
+                getLogger().trace(
+                        "Document: " + id + " is known to be missing.");
+                continue;
+            }
+            final File file = fileFor(id);
+            if (file == null || files.containsKey(id)) {
+                continue;
+            }
+            files.put(id, file);
+            List<String> group = groups.get(file.getParentFile());
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(file.getParentFile(), group);
+            }
+            group.add(id);
+        }
+        if (files.isEmpty()) {
+            return inRequestOrder(ids, cachedDocuments, null);
+        }
+
+        final List<String> present = new ArrayList<String>(files.size());
+        for (final Map.Entry<File, List<String>> group : groups.entrySet()) {
+            final int size = group.getValue().size();
+            final Set<String> names =
+                    size >= BULK_SCAN_THRESHOLD ? listNames(group.getKey(),
+                            size * BULK_SCAN_ENTRIES_PER_ID) : null;
+            for (final String id : group.getValue()) {
+                if (names != null &&
+                        !names.contains(files.get(id).getName())) {
+                    missingIds.addMissing(id);
+                } else {
+                    present.add(id);
+                }
+            }
+        }
+
+        final Map<String, FileAttributes> attributes =
+                readAttributes(present, files);
+        final Map<String, Document> builtDocuments =
+                new HashMap<String, Document>(present.size() * 2);
+        for (final String id : present) {
+            final FileAttributes attrs = attributes.get(id);
+            if (attrs == null) {
+                missingIds.addMissing(id);
+                continue;
+            }
+            final Document document = buildDocument(id, files.get(id), attrs);
+            builtDocuments.put(id, document);
+            if (prefetcher != null && !prefetching && isBagId(id)) {
+                prefetcher.prefetch(id, readDocument(document)
+                        .getChildrenMap().keySet());
+            }
+        }
+        return inRequestOrder(ids, cachedDocuments, builtDocuments);
+    }
+
+    private static Map<String, Document> inRequestOrder(
+            final Collection<String> ids, final Map<String, Document> cached,
+            final Map<String, Document> built) {
+        final Map<String, Document> documents =
+                new LinkedHashMap<String, Document>(ids.size() * 2);
+        for (final String id : ids) {
+            Document document = cached.get(id);
+            if (document == null && built != null) {
+                document = built.get(id);
+            }
+            if (document != null) {
+                documents.put(id, document);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * @param id the id of a document
+     * @param document the document
+     * @return the id of its jcr:content child if it is a datastream, else
+     *         null
+     */
+    String contentIdOf(final String id, final Document document) {
+        final String contentId = id + JCR_CONTENT_SUFFIX;
+        return readDocument(document).getChildrenMap().containsKey(contentId)
+                ? contentId : null;
+    }
+
+    /**
+     * @param limit the most entries to read
+     * @return the names in a directory, or null if it cannot be listed or
+     *         has more than limit entries
+     */
+    private static Set<String> listNames(final File dir, final int limit) {
+        if (dir == null) {
+            return null;
+        }
+        IoStatistics.directoryRead();
+        final Set<String> names = new HashSet<String>();
+        try (final DirectoryStream<Path> entries =
+                Files.newDirectoryStream(dir.toPath())) {
+            for (final Path entry : entries) {
+                if (names.size() == limit) {
+                    return null;
+                }
+                names.add(entry.getFileName().toString());
+            }
+        } catch (final IOException | DirectoryIteratorException e) {
             return null;
         }
+        return names;
+    }
+
+    /**
+     * Reads the attributes of the files of the given ids, in parallel when
+     * there is more than one.
+     */
+    private Map<String, FileAttributes> readAttributes(
+            final List<String> ids, final Map<String, File> files) {
+        final Map<String, FileAttributes> attributes =
+                new HashMap<String, FileAttributes>(ids.size() * 2);
+        if (ids.size() == 1 || attributeReaders == null) {
+            for (final String id : ids) {
+                attributes.put(id, FileAttributes.read(files.get(id).toPath()));
+            }
+            return attributes;
+        }
+        final List<Future<FileAttributes>> reads =
+                new ArrayList<Future<FileAttributes>>(ids.size());
+        for (final String id : ids) {
+            final Path path = files.get(id).toPath();
+            reads.add(attributeReaders.submit(new Callable<FileAttributes>() {
+
+                @Override
+                public FileAttributes call() {
+                    return FileAttributes.read(path);
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                attributes.put(ids.get(i), reads.get(i).get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentStoreException(ids.toString(), e);
+        } catch (final ExecutionException e) {
+            throw new DocumentStoreException(ids.toString(), e.getCause());
+        } finally {
+            for (final Future<FileAttributes> read : reads) {
+                read.cancel(true);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Builds the document for an existing file and caches it.
+     * 
+     * @param id the id of the document
+     * @param file the file backing it
+     * @param attrs the attributes of the file, read once by the caller
+     * @return the document
+     */
+    protected Document buildDocument(final String id, final File file,
+            final FileAttributes attrs) {
+        IoStatistics.documentBuilt();
         final boolean isRoot = isRoot(id);
         final boolean isResource = isContentNode(id);
+        final boolean isDatastream =
+                !isRoot && !isResource && attrs.isRegularFile();
+        final boolean isBag = !isDatastream && isBagId(id);
+        // stamp what the document will reflect before building it, so a
+        // change made while we build is not masked in the cache
+        final File stampedFile;
+        final FileStamp fileStamp;
+        final File[] related;
+        final FileStamp[] relatedStamps;
+        if (isBag) {
+            stampedFile = new File(file, IdTranslator.DATA);
+            fileStamp = FileStamp.of(stampedFile);
+            final BagSnapshot snapshot = getBagSnapshot(id);
+            final File bagInfoFile =
+                    snapshot == null ? null : snapshot.getBagInfoFile();
+            final FileStamp bagInfoStamp = FileStamp.of(bagInfoFile);
+            if (snapshot != null &&
+                    !bagInfoStamp.equals(snapshot.getBagInfoStamp())) {
+                // bag-info.txt changed without the monitor telling us (a
+                // missed event, or between polls), so the snapshot is stale
+                getLogger().debug(
+                        "Re-reading stale snapshot of {0}", id);
+                refreshBagSnapshot(id);
+            }
+            related = new File[] {bagInfoFile};
+            relatedStamps = new FileStamp[] {bagInfoStamp};
+        } else if (isDatastream || isResource) {
+            stampedFile = file;
+            fileStamp = attrs.stamp();
+            // the recorded digests and the binary key come from the
+            // manifests, which may be rewritten while the file is not
+            final int slash = id.indexOf(JCR_PATH_DELIMITER_CHAR, 1);
+            final BagSnapshot snapshot =
+                    slash == -1 ? null : getBagSnapshot(id.substring(0, slash));
+            final List<ManifestFile> manifests =
+                    snapshot == null ? Collections.<ManifestFile> emptyList()
+                            : snapshot.getPayloadManifests();
+            related = new File[manifests.size()];
+            relatedStamps = new FileStamp[manifests.size()];
+            for (int i = 0; i < related.length; i++) {
+                related[i] = manifests.get(i).getFile();
+                relatedStamps[i] = FileStamp.of(related[i]);
+            }
+        } else {
+            stampedFile = file;
+            fileStamp = attrs.stamp();
+            related = null;
+            relatedStamps = null;
+        }
+        long childCount = 0;
         final DocumentWriter writer = newDocument(id);
         File parentFile = file.getParentFile();
         if (isRoot) {
@@ -211,24 +796,8 @@ public class BagItConnector extends FileSystemConnector {
                             " to be the projection root.");
             writer.setPrimaryType(NT_FOLDER);
             writer.addProperty(JCR_CREATED, factories().getDateFactory()
-                    .create(file.lastModified()));
+                    .create(attrs.lastModified()));
             writer.addProperty(JCR_CREATED_BY, null); // ignored
-            for (final File child : file.listFiles()) {
-                // Only include as a datastream if we can access and read the
-                // file. Permissions might prevent us from
-                // reading the file, and the file might not exist if it is a
-                // broken symlink (see MODE-1768 for details).
-                if (child.exists() && child.canRead() &&
-                        (child.isFile() || child.isDirectory())) {
-                    // We use identifiers that contain the file/directory name
-                    // ...
-                    final String childName = child.getName();
-                    final String childId =
-                            isRoot ? File.separator + childName : id +
-                                    File.separator + childName;
-                    writer.addChild(childId, childName);
-                }
-            }
         } else if (isResource) {
             getLogger().trace(
                     "Determined document: " + id + " to be a binary resource.");
@@ -249,62 +818,44 @@ public class BagItConnector extends FileSystemConnector {
                 writer.addProperty(JCR_MIME_TYPE, mimeType);
             }
             writer.addProperty(JCR_LAST_MODIFIED, factories().getDateFactory()
-                    .create(file.lastModified()));
+                    .create(attrs.lastModified()));
             writer.addProperty(JCR_LAST_MODIFIED_BY, null); // ignored
+            addRecordedDigests(writer, id.substring(0, id.length() -
+                    JCR_CONTENT_SUFFIX.length()));
 
             // make these binary not queryable. If we really want to query them,
             // we need to switch to external binaries
             writer.setNotQueryable();
             parentFile = file;
-        } else if (file.isFile()) {
+        } else if (isDatastream) {
             getLogger().trace(
                     "Determined document: " + id + " to be a datastream.");
             writer.setPrimaryType(JcrConstants.NT_FILE);
             writer.addProperty(JCR_CREATED, factories().getDateFactory()
-                    .create(file.lastModified()));
-            try {
-                final String owner = Files.getOwner(file.toPath()).getName();
-                writer.addProperty(JCR_CREATED_BY, owner);
-            } catch (final IOException e) {
-                throw new RuntimeException(e);
-            }
-            final String childId =
-                    isRoot ? JCR_CONTENT_SUFFIX : id + JCR_CONTENT_SUFFIX;
+                    .create(attrs.lastModified()));
+            writer.addProperty(JCR_CREATED_BY, ownerOf(attrs));
+            addRecordedDigests(writer, id);
+            final String childId = id + JCR_CONTENT_SUFFIX;
             writer.addChild(childId, JCR_CONTENT);
-        } else {
+            childCount++;
+        } else if (isBag) {
             getLogger().trace(
                     "Determined document: " + id + " to be a Fedora object.");
-            final File dataDir =
-                    new File(new File(file.getAbsolutePath()), "data");
-            getLogger()
-                    .trace("searching data dir " + dataDir.getAbsolutePath());
             writer.setPrimaryType(NT_FOLDER);
             writer.addMixinType(BAGIT_ARCHIVE_TYPE);
             writer.addProperty(JCR_CREATED, factories().getDateFactory()
-                    .create(file.lastModified()));
-            try {
-                final String owner = Files.getOwner(file.toPath()).getName();
-                writer.addProperty(JCR_CREATED_BY, owner); // required
-            } catch (final IOException e) {
-                throw new RuntimeException(e);
-            }
-            // get datastreams as children
-            for (final File child : dataDir.listFiles()) {
-                // Only include as a datastream if we can access and read the
-                // file. Permissions might prevent us from
-                // reading the file, and the file might not exist if it is a
-                // broken symlink (see MODE-1768 for details).
-                if (child.exists() && child.canRead() &&
-                        (child.isFile() || child.isDirectory())) {
-                    // We use identifiers that contain the file/directory name
-                    // ...
-                    final String childName = child.getName();
-                    final String childId =
-                            isRoot ? File.separator + childName : id +
-                                    File.separator + childName;
-                    writer.addChild(childId, childName);
-                }
-            }
+                    .create(attrs.lastModified()));
+            writer.addProperty(JCR_CREATED_BY, ownerOf(attrs)); // required
+        } else {
+            getLogger().trace(
+                    "Determined document: " + id + " to be a payload folder.");
+            writer.setPrimaryType(NT_FOLDER);
+            writer.addProperty(JCR_CREATED, factories().getDateFactory()
+                    .create(attrs.lastModified()));
+            writer.addProperty(JCR_CREATED_BY, null); // ignored
+        }
+        if (!isResource && !isDatastream) {
+            childCount = writeChildren(writer, id, stampedFile, 0, pageSize);
         }
 
         if (!isRoot) {
@@ -316,17 +867,140 @@ public class BagItConnector extends FileSystemConnector {
         // Add the extra properties (if there are any), overwriting any
         // properties with the same names
         // (e.g., jcr:primaryType, jcr:mixinTypes, jcr:mimeType, etc.) ...
-        writer.addProperties(new BagItExtraPropertiesStore(this)
-                .getProperties(id));
-        getLogger().trace("Leaving getDocumentById().");
+        writer.addProperties(extraPropertiesStore().getProperties(id));
+        final Document document = writer.document();
+        documentCache.put(id, document, stampedFile, fileStamp, related,
+                relatedStamps, 1 + childCount);
+        return document;
+    }
+
+    /**
+     * Keys the binary value of a payload file by the SHA-1 its bag's
+     * manifest-sha1.txt records, where there is one, rather than by hashing
+     * the file. The value reads the file only when its stream is opened.
+     */
+    @Override
+    protected ExternalBinaryValue binaryFor(final File file) {
+        final String sha1 = recordedDigests(idFor(file)).get(SHA1);
+        final BinaryKey key;
+        if (sha1 != null && BinaryKey.isProperlyFormattedKey(sha1)) {
+            key = new BinaryKey(sha1.toLowerCase());
+        } else if (stampBinaryKeys) {
+            final FileAttributes attrs = FileAttributes.read(file.toPath());
+            if (attrs == null) {
+                return super.binaryFor(file);
+            }
+            key =
+                    new BinaryKey(Hashing.sha1().newHasher().putString(
+                            file.getAbsolutePath(), UTF_8).putLong(
+                            attrs.size()).putLong(attrs.lastModified())
+                            .hash().asBytes());
+        } else {
+            return super.binaryFor(file);
+        }
+        try {
+            return createBinaryValue(key, file);
+        } catch (final IOException e) {
+            throw new DocumentStoreException(idFor(file), e);
+        }
+    }
+
+    /**
+     * @param attrs the attributes of a file
+     * @return the name of the file's owner, or null if it is not known
+     */
+    protected String ownerOf(final FileAttributes attrs) {
+        return ownerCache.ownerOf(attrs);
+    }
+
+    /**
+     * Writes the next page of the children of a bag or folder.
+     */
+    @Override
+    public Document getChildren(final PageKey pageKey) {
+        final String parentId = pageKey.getParentId();
+        final File parent = fileFor(parentId);
+        final File dir =
+                isBagId(parentId) ? new File(parent, IdTranslator.DATA)
+                        : parent;
+        final PageWriter writer = newPageDocument(pageKey);
+        writeChildren(writer, parentId, dir, pageKey.getOffsetInt(),
+                (int) pageKey.getBlockSize());
         return writer.document();
     }
 
+    /**
+     * Streams one page of the entries of a directory into a document as
+     * children, adding a reference to the next page if there is one.
+     * 
+     * @param writer the document or page being written
+     * @param parentId the id of the node whose children these are
+     * @param dir the directory to list
+     * @param offset the number of children on earlier pages
+     * @param blockSize the number of children per page
+     * @return the number of children written
+     */
+    protected int writeChildren(final PageWriter writer,
+            final String parentId, final File dir, final int offset,
+            final int blockSize) {
+        if (isRoot(parentId)) {
+            return writeBags(writer, offset, blockSize);
+        }
+        getLogger().trace("searching data dir " + dir.getAbsolutePath());
+        final DirectoryPager.Page page;
+        try {
+            page =
+                    directoryPager.read(dir.toPath(), offset, blockSize,
+                            READABLE_ENTRIES);
+        } catch (final NoSuchFileException e) {
+            return 0;
+        } catch (final IOException e) {
+            throw new DocumentStoreException(parentId, e);
+        }
+        final String prefix =
+                isRoot(parentId) ? JCR_PATH_DELIMITER : parentId +
+                        JCR_PATH_DELIMITER;
+        for (final Path child : page.getEntries()) {
+            // We use identifiers that contain the file/directory name
+            final String childName = child.getFileName().toString();
+            writer.addChild(prefix + childName, childName);
+        }
+        final int count = page.getEntries().size();
+        if (page.hasMore()) {
+            writer.addPage(parentId, offset + count, blockSize,
+                    PageWriter.UNKNOWN_TOTAL_SIZE);
+        }
+        return count;
+    }
+
+    /**
+     * Writes one page of the bags as children of the projection root, from
+     * the {@link BagRegistry}.
+     */
+    private int writeBags(final PageWriter writer, final int offset,
+            final int blockSize) {
+        final List<String> names = bagRegistry.page(offset, blockSize);
+        for (final String name : names) {
+            writer.addChild(JCR_PATH_DELIMITER + name, name);
+        }
+        final int count = names.size();
+        if (offset + count < bagRegistry.size()) {
+            writer.addPage(JCR_PATH_DELIMITER, offset + count, blockSize,
+                    bagRegistry.size());
+        }
+        return count;
+    }
+
     @Override
     public DocumentWriter newDocument(final String id) {
         return m_writerFactory.getDocumentWriter(id);
     }
 
+    @Override
+    protected PageWriter newPageDocument(final PageKey pageKey) {
+        return m_writerFactory.getPageWriter(pageKey);
+    }
+
     @Override
     public void storeDocument(final Document document) {
         // TODO Auto-generated method stub
@@ -344,45 +1018,9 @@ public class BagItConnector extends FileSystemConnector {
     }
 
     @Override
-    protected File fileFor(String id) {
+    protected File fileFor(final String id) {
         assert id.startsWith(JCR_PATH_DELIMITER);
-        if (id.endsWith(JCR_PATH_DELIMITER)) {
-            id = id.substring(0, id.length() - JCR_PATH_DELIMITER.length());
-        }
-        if (isContentNode(id)) {
-            id = id.substring(0, id.length() - JCR_CONTENT_SUFFIX_LENGTH);
-        }
-        if ("".equals(id)) {
-            getLogger().trace(
-                    "#fileFor returning root directory for \"" + id + "\"");
-            return this.m_directory; // root node
-        }
-
-        if (isContentNode(id)) {
-            id = id.substring(0, id.length() - JCR_CONTENT_SUFFIX_LENGTH);
-        }
-        // /{bagId}/{dsId}(/{jcr:content})?
-        final Pattern p = Pattern.compile("^(\\/[^\\/]+)(\\/[^\\/]+)");
-        final Matcher m = p.matcher(id);
-        if (m.find()) {
-            id =
-                    id.replace(m.group(1), m.group(1) + JCR_PATH_DELIMITER +
-                            "data"); // because we're going to swap the delims
-                                     // out for the system seperator
-        }
-
-        final File result =
-                new File(this.m_directory, id.replace(JCR_PATH_DELIMITER_CHAR,
-                        File.separatorChar));
-        getLogger().trace(result.getAbsolutePath());
-        // return super.fileFor(id);
-        return result;
-    }
-
-    protected File bagInfoFileFor(final String id) {
-        final File dir = fileFor(id);
-        final File result = new File(dir, "bag-info.txt");
-        return (result.exists()) ? result : null;
+        return idTranslator.fileFor(id);
     }
 
     @Override
@@ -405,32 +1043,15 @@ public class BagItConnector extends FileSystemConnector {
      * @see #fileFor(String)
      */
     protected String idFor(final File file) {
-        final String path = file.getAbsolutePath();
-        if (!path.startsWith(directoryAbsolutePath)) {
-            if (m_directory.getAbsolutePath().equals(path)) {
-                // This is the root
-                return JCR_PATH_DELIMITER;
-            }
+        final String id = idTranslator.idFor(file);
+        if (id == null) {
+            final String path = file.getAbsolutePath();
             final String msg =
                     JcrI18n.fileConnectorNodeIdentifierIsNotWithinScopeOfConnector
                             .text(getSourceName(), directoryPath, path);
             throw new DocumentStoreException(path, msg);
         }
-        String id = path.substring(directoryAbsolutePathLength);
-        id =
-                id.replace(File.separator + "data" + File.separator,
-                        File.separator); // data dir should be removed from the
-                                         // id of a DS node
-        if (id.endsWith(File.separator + "data")) {
-            id = id.substring(0, id.length() - 5); // might also be the parent
-                                                   // file of a DS node
-        }
-        id = id.replace(File.separatorChar, JCR_PATH_DELIMITER_CHAR);
-        if ("".equals(id)) {
-            id = JCR_PATH_DELIMITER;
-        }
         assert id.startsWith(JCR_PATH_DELIMITER);
-        // System.out.println("idFor = " + id);
         return id;
     }
 
@@ -442,72 +1063,597 @@ public class BagItConnector extends FileSystemConnector {
         return getContext().getPropertyFactory();
     }
 
+    /**
+     * @param id a node id
+     * @return true if the id names a bag, i.e. a child of the projection root
+     */
+    protected boolean isBagId(final String id) {
+        return id.length() > 1 && id.charAt(0) == JCR_PATH_DELIMITER_CHAR &&
+                id.indexOf(JCR_PATH_DELIMITER_CHAR, 1) == -1;
+    }
+
+    /**
+     * @param id the id of a bag
+     * @return the metadata snapshot of the bag, read on first use; or null if
+     *         the id is not that of an existing bag
+     */
+    protected BagSnapshot getBagSnapshot(final String id) {
+        if (!isBagId(id)) {
+            return null;
+        }
+        final BagSnapshot snapshot = bagSnapshots.get(id);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        final BagSnapshot read = readBagSnapshot(id);
+        if (read == null) {
+            return null;
+        }
+        synchronized (bagSnapshots) {
+            final BagSnapshot existing = bagSnapshots.get(id);
+            if (existing != null) {
+                return existing;
+            }
+            bagSnapshots.put(id, read);
+        }
+        return read;
+    }
+
+    /**
+     * Re-reads the metadata of a bag and swaps in the new snapshot.
+     * 
+     * @param id the id of a bag
+     * @return the new snapshot, or null if the bag no longer exists
+     */
+    protected BagSnapshot refreshBagSnapshot(final String id) {
+        if (!isBagId(id)) {
+            return null;
+        }
+        final BagSnapshot read = readBagSnapshot(id);
+        if (read == null) {
+            bagSnapshots.remove(id);
+        } else {
+            bagSnapshots.put(id, read);
+        }
+        return read;
+    }
+
+    protected BagSnapshot refreshBagSnapshot(final Path path) {
+        return refreshBagSnapshot(idFor(path.toFile()));
+    }
+
+    /**
+     * @param path the bag directory
+     * @return the metadata snapshot of the bag held now, without reading
+     *         one; or null if there is none
+     */
+    protected BagSnapshot cachedBagSnapshot(final Path path) {
+        return bagSnapshots.get(idFor(path.toFile()));
+    }
+
+    /**
+     * Adds the digests the manifests record for a payload file, one property
+     * per algorithm, so clients get them without the file being read.
+     */
+    private void addRecordedDigests(final DocumentWriter writer,
+            final String id) {
+        for (final Map.Entry<String, String> digest : recordedDigests(id)
+                .entrySet()) {
+            writer.addProperty(BAGIT_CHECKSUM_PREFIX + digest.getKey(), digest
+                    .getValue());
+        }
+    }
+
+    /**
+     * Looks up the digests the payload manifests of a bag record for a file,
+     * through their {@link ManifestIndex}es.
+     *
+     * @param id the id of a payload file
+     * @return its digests by algorithm; empty if none is recorded
+     */
+    protected Map<String, String> recordedDigests(final String id) {
+        final int slash = id.indexOf(JCR_PATH_DELIMITER_CHAR, 1);
+        if (slash == -1 || manifestIndexes == null) {
+            return Collections.emptyMap();
+        }
+        final BagSnapshot snapshot = getBagSnapshot(id.substring(0, slash));
+        if (snapshot == null) {
+            return Collections.emptyMap();
+        }
+        final String path = "data" + id.substring(slash);
+        final Map<String, String> digests = new HashMap<String, String>(4);
+        for (final ManifestFile manifest : snapshot.getPayloadManifests()) {
+            try {
+                final String digest =
+                        manifestIndexes.get(manifest.getFile().toPath(),
+                                manifest.getAlgorithm()).digestOf(path);
+                if (digest != null) {
+                    digests.put(manifest.getAlgorithm(), digest);
+                }
+            } catch (final IOException e) {
+                getLogger().debug(
+                        "Could not index " + manifest.getFile() + ": " + e);
+            }
+        }
+        return digests;
+    }
+
+    protected void dropBagSnapshot(final String id) {
+        bagSnapshots.remove(id);
+    }
+
+    private BagSnapshot readBagSnapshot(final String id) {
+        final File dir = new File(m_directory, id.substring(1));
+        return BagSnapshot.read(id, dir, getPropertyFactory(),
+                getValueFactories().getNameFactory());
+    }
+
+    /**
+     * @param id the id of a bag
+     * @return a writable view of the bag's bag-info.txt, or null if it has
+     *         none
+     */
     protected BagInfo getBagInfo(final String id) {
-        final File bagInfoFile = bagInfoFileFor(id);
-        if (bagInfoFile == null) {
+        final BagSnapshot snapshot = getBagSnapshot(id);
+        if (snapshot == null) {
+            return null;
+        }
+        // the snapshot may predate the file, so look for it on disk
+        final File bagInfoFile = snapshot.getBagInfoFile();
+        if (!bagInfoFile.exists()) {
             return null;
         }
-        // really need to get the version from bagit.txt, but start with
-        // hard-coding
         final ValueFactories vf = getValueFactories();
         final BagInfo result =
                 new BagInfo(id, new FileBagFile(bagInfoFile.getAbsolutePath(),
                         bagInfoFile), getPropertyFactory(),
-                        vf.getNameFactory(), new BagConstantsImpl());
+                        vf.getNameFactory(), snapshot.getBagConstants());
         return result;
     }
 
+    BagRegistry getBagRegistry() {
+        return bagRegistry;
+    }
+
+    /**
+     * @return the last known state of the bags, or null if it is not kept
+     */
+    BagStateIndex getBagStateIndex() {
+        return bagStateIndex;
+    }
+
+    /**
+     * Writes the {@link BagStateIndex}, if it is kept and has changed.
+     */
+    void saveBagState() {
+        if (bagStateIndex != null) {
+            bagStateIndex.save();
+        }
+    }
+
+    long getEventQuietMillis() {
+        return eventQuietMillis;
+    }
+
+    int getEventThreads() {
+        return eventThreads;
+    }
+
+    boolean isWatchingPayload() {
+        return watchPayloadDirectories;
+    }
+
+    int getStartupScanThreads() {
+        return startupScanThreads;
+    }
+
+    boolean isPolling() {
+        return "poll".equalsIgnoreCase(monitorMode);
+    }
+
+    int getPollIntervalSeconds() {
+        return pollIntervalSeconds;
+    }
+
+    int getPollThreads() {
+        return pollThreads;
+    }
+
+    /**
+     * Drops the cached documents for a payload file or directory that was
+     * created, changed or deleted, and for its parent, whose children may
+     * have changed.
+     * 
+     * @param path the payload file or directory
+     */
+    protected void invalidatePayload(final Path path) {
+        final String id = idTranslator.idFor(path.toFile());
+        if (id == null) {
+            return;
+        }
+        documentCache.invalidateTree(id);
+        documentCache.invalidate(MissingIdCache.parentOf(id));
+        missingIds.invalidate(MissingIdCache.parentOf(id));
+        missingIds.invalidateTree(id);
+    }
+
+    /**
+     * @param dir a payload folder, or the data/ of a bag
+     * @return the names of its children as last served from the document
+     *         cache, or null if they are not all known there (not cached, or
+     *         perhaps more than one page of them)
+     */
+    protected Set<String> knownChildren(final Path dir) {
+        final String id = idTranslator.idFor(dir.toFile());
+        final Document document = id == null ? null : documentCache.peek(id);
+        if (document == null) {
+            return null;
+        }
+        final Set<String> children =
+                readDocument(document).getChildrenMap().keySet();
+        if (children.size() >= pageSize) {
+            return null;
+        }
+        final Set<String> names = new HashSet<String>(children.size() * 2);
+        for (final String child : children) {
+            names.add(child.substring(child
+                    .lastIndexOf(JCR_PATH_DELIMITER_CHAR) + 1));
+        }
+        return names;
+    }
+
+    /**
+     * Adds a new directory in the root to the {@link BagRegistry}.
+     * 
+     * @param path the bag directory
+     * @return true if it is a readable directory that was not yet registered
+     */
+    protected boolean registerBag(final Path path) {
+        if (!BagRegistry.isBagDirectory(path)) {
+            return false;
+        }
+        final boolean added =
+                bagRegistry.add(path.getFileName().toString());
+        if (added) {
+            documentCache.invalidate(JCR_PATH_DELIMITER);
+        }
+        return added;
+    }
+
+    /**
+     * Removes a directory gone from the root from the {@link BagRegistry}.
+     * 
+     * @param path the bag directory
+     */
+    protected void unregisterBag(final Path path) {
+        if (bagRegistry.remove(path.getFileName().toString())) {
+            documentCache.invalidate(JCR_PATH_DELIMITER);
+        }
+    }
+
+    /**
+     * Drops the cached documents for a bag and everything in it, along with
+     * the projection root whose children may have changed.
+     * 
+     * @param id the id of the bag
+     */
+    protected void invalidateBag(final String id) {
+        documentCache.invalidateTree(id);
+        documentCache.invalidate(JCR_PATH_DELIMITER);
+        missingIds.invalidateTree(id);
+        missingIds.invalidate(JCR_PATH_DELIMITER);
+    }
+
+    /**
+     * Forgets the misses that a newly created file or directory may answer:
+     * those in its directory and any below it.
+     * 
+     * @param path the created file or directory
+     */
+    protected void invalidateMissing(final Path path) {
+        final String id = idTranslator.idFor(path.toFile());
+        if (id == null) {
+            return;
+        }
+        missingIds.invalidate(MissingIdCache.parentOf(id));
+        missingIds.invalidateTree(id);
+    }
+
     /**
      * Sends a change set with a new node event for the bag.
      * 
      * @param p the path to the bag folder
      */
     protected void fireNewBagEvent(Path path) {
-        ConnectorChangeSet changes = newConnectorChangedSet();
-        String key = idFor(path.toFile());
+        final String key = idFor(path.toFile());
+        invalidateBag(key);
         Document doc = getDocumentById(key);
-        DocumentReader reader = readDocument(doc);
+        final DocumentReader reader = readDocument(doc);
         getLogger().debug(
                 "firing new bag node event with\n\tkey {0}\n\tpathToNode {1}",
                 key, key);
-        changes.nodeCreated(key, "/", key, reader.getProperties());
-        changes.publish(null);
+        changeBatcher.add(new ChangeSetBatcher.Change() {
+
+            @Override
+            public void record(final ConnectorChangeSet changes) {
+                changes.nodeCreated(key, "/", key, reader.getProperties());
+            }
+        });
     }
 
     /**
      * @param path the path of the bag folder
      */
     public void fireRemoveBagEvent(Path path) {
-        ConnectorChangeSet changes = newConnectorChangedSet();
-        String key = idFor(path.toFile());
+        final String key = idFor(path.toFile());
+        invalidateBag(key);
+        dropBagSnapshot(key);
         getLogger()
                 .debug("firing remove bag node event with\n\tkey {0}\n\tpathToNode {1}",
                         key, key);
-        changes.nodeRemoved(key, "/", key);
-        changes.publish(null);
+        changeBatcher.add(new ChangeSetBatcher.Change() {
+
+            @Override
+            public void record(final ConnectorChangeSet changes) {
+                changes.nodeRemoved(key, "/", key);
+            }
+        });
     }
 
     /**
-     * Sends a change set with a new node event for the bag.
+     * Sends a change set with what changed in a bag as a whole: the
+     * properties of the bag node (bag-info.txt among them) and the payload
+     * files and folders added to or removed from data/, found by comparing
+     * the document last built for the bag with a new one. Nothing is sent if
+     * they are the same. Where no earlier document is cached there is
+     * nothing to compare with, and the bag's current jcr:created is sent,
+     * which makes the repository drop what it holds of the bag.
      * 
-     * @param p the path to the bag folder
+     * @param path the path to the bag folder
      */
-    protected void fireModifiedBagEvent(Path path) {
-        ConnectorChangeSet changes = newConnectorChangedSet();
-        String key = idFor(path.toFile());
-        Document doc = getDocumentById(key);
-        DocumentReader reader = readDocument(doc);
-        getLogger()
-                .debug("firing modified bag node event with\n\tkey {0}\n\tpathToNode {1}",
-                        key, key);
-        DateTime dt =
-                this.factories().getDateFactory().create(
-                        System.currentTimeMillis() - 10000);
-        Property dtprop =
-                new BasicPropertyFactory(factories()).create(
-                        JcrLexicon.CREATED, PropertyType.DATE, dt);
-        changes.propertyChanged(key, key, reader.getProperty(JCR_CREATED),
-                dtprop);
-        changes.publish(null);
+    protected void fireModifiedBagEvent(final Path path) {
+        final String key = idFor(path.toFile());
+        final Document old = documentCache.peek(key);
+        invalidateBag(key);
+        final Document doc = getDocumentById(key);
+        if (doc == null) {
+            return;
+        }
+        final DocumentReader after = readDocument(doc);
+        final List<ChangeSetBatcher.Change> events =
+                new ArrayList<ChangeSetBatcher.Change>();
+        if (old == null) {
+            final Property created = after.getProperty(JCR_CREATED);
+            events.add(new ChangeSetBatcher.Change() {
+
+                @Override
+                public void record(final ConnectorChangeSet changes) {
+                    changes.propertyChanged(key, key, null, created);
+                }
+            });
+        } else {
+            final DocumentReader before = readDocument(old);
+            final Map<Name, Property> oldProperties = before.getProperties();
+            final Map<Name, Property> newProperties = after.getProperties();
+            if (!oldProperties.equals(newProperties)) {
+                events.add(new ChangeSetBatcher.Change() {
+
+                    @Override
+                    public void record(final ConnectorChangeSet changes) {
+                        recordPropertyChanges(key, oldProperties,
+                                newProperties, changes);
+                    }
+                });
+            }
+            addChildEvents(path.resolve(IdTranslator.DATA), before
+                    .getChildrenMap().keySet(), after.getChildrenMap()
+                    .keySet(), events);
+        }
+        if (events.isEmpty()) {
+            getLogger().debug("bag {0} unchanged", key);
+            return;
+        }
+        getLogger().debug("firing {0} modified bag events for {1}",
+                events.size(), key);
+        changeBatcher.add(new ChangeSetBatcher.Change() {
+
+            @Override
+            public void record(final ConnectorChangeSet changes) {
+                for (final ChangeSetBatcher.Change event : events) {
+                    event.record(changes);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the events for the children of a folder that were added or
+     * removed between two of its documents, as long as both hold all of its
+     * children (less than a page of them).
+     */
+    private void addChildEvents(final Path dir, final Set<String> before,
+            final Set<String> after,
+            final List<ChangeSetBatcher.Change> events) {
+        if (before.size() >= pageSize || after.size() >= pageSize) {
+            return;
+        }
+        for (final String child : after) {
+            if (!before.contains(child)) {
+                addPayloadEvent(dir, child, EventCoalescer.Kind.CREATED,
+                        events);
+            }
+        }
+        for (final String child : before) {
+            if (!after.contains(child)) {
+                addPayloadEvent(dir, child, EventCoalescer.Kind.REMOVED,
+                        events);
+            }
+        }
+    }
+
+    private void addPayloadEvent(final Path dir, final String childId,
+            final EventCoalescer.Kind kind,
+            final List<ChangeSetBatcher.Change> events) {
+        final ChangeSetBatcher.Change event =
+                payloadEvent(dir.resolve(childId.substring(childId
+                        .lastIndexOf(JCR_PATH_DELIMITER_CHAR) + 1)), kind);
+        if (event != null) {
+            events.add(event);
+        }
+    }
+
+    /**
+     * Sends a change set with the changes to the bag-info.txt properties of
+     * a bag, and only those; nothing is sent when the parsed content is the
+     * same (e.g. after a touch).
+     * 
+     * @param path the path to the bag folder
+     * @param before the snapshot of the bag before the change
+     * @param after the snapshot of the bag after it
+     */
+    protected void fireBagInfoEvents(final Path path,
+            final BagSnapshot before, final BagSnapshot after) {
+        final String key = idFor(path.toFile());
+        final Map<Name, Property> oldProperties = before.getProperties();
+        final Map<Name, Property> newProperties = after.getProperties();
+        if (oldProperties.equals(newProperties)) {
+            getLogger().debug("bag-info.txt of {0} unchanged", key);
+            return;
+        }
+        documentCache.invalidate(key);
+        changeBatcher.add(new ChangeSetBatcher.Change() {
+
+            @Override
+            public void record(final ConnectorChangeSet changes) {
+                recordPropertyChanges(key, oldProperties, newProperties,
+                        changes);
+            }
+        });
+    }
+
+    /**
+     * Sends a change set with node events for the payload files and folders
+     * of a bag that changed: created and removed nodes, and a new
+     * jcr:lastModified for the content of a changed file. The rest of the
+     * bag is left alone.
+     * 
+     * @param changes the net change to each path, in the order seen
+     */
+    protected void firePayloadEvents(
+            final Map<Path, EventCoalescer.Kind> changes) {
+        final List<ChangeSetBatcher.Change> events =
+                new ArrayList<ChangeSetBatcher.Change>(changes.size());
+        for (final Map.Entry<Path, EventCoalescer.Kind> change : changes
+                .entrySet()) {
+            final ChangeSetBatcher.Change event =
+                    payloadEvent(change.getKey(), change.getValue());
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        getLogger().debug("firing {0} payload node events", events.size());
+        changeBatcher.add(new ChangeSetBatcher.Change() {
+
+            @Override
+            public void record(final ConnectorChangeSet changeSet) {
+                for (final ChangeSetBatcher.Change event : events) {
+                    event.record(changeSet);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the event for one payload file or folder, or null if there is
+     *         nothing to tell (e.g. it is gone again, or only the attributes
+     *         of a folder changed)
+     */
+    private ChangeSetBatcher.Change payloadEvent(final Path path,
+            final EventCoalescer.Kind kind) {
+        final String id = idFor(path.toFile());
+        final String parentId = idFor(path.getParent().toFile());
+        documentCache.invalidateTree(id);
+        if (kind == EventCoalescer.Kind.REMOVED) {
+            return new ChangeSetBatcher.Change() {
+
+                @Override
+                public void record(final ConnectorChangeSet changes) {
+                    changes.nodeRemoved(id, parentId, id);
+                }
+            };
+        }
+        final Document doc = getDocumentById(id);
+        if (doc == null) {
+            return null;
+        }
+        if (kind == EventCoalescer.Kind.CREATED) {
+            final DocumentReader reader = readDocument(doc);
+            return new ChangeSetBatcher.Change() {
+
+                @Override
+                public void record(final ConnectorChangeSet changes) {
+                    changes.nodeCreated(id, parentId, id, reader
+                            .getProperties());
+                }
+            };
+        }
+        final String contentId = id + JCR_CONTENT_SUFFIX;
+        final Document content =
+                Files.isRegularFile(path) ? getDocumentById(contentId) : null;
+        if (content == null) {
+            return null;
+        }
+        final Property lastModified =
+                readDocument(content).getProperty(JCR_LAST_MODIFIED);
+        return new ChangeSetBatcher.Change() {
+
+            @Override
+            public void record(final ConnectorChangeSet changes) {
+                changes.propertyChanged(contentId, contentId, null,
+                        lastModified);
+            }
+        };
+    }
+
+    /**
+     * Records the differences between two sets of properties of a node.
+     * 
+     * @param key the id (and path) of the node
+     * @param before the properties before
+     * @param after the properties after
+     * @param changes where to record them
+     * @return the number of changes recorded
+     */
+    static int recordPropertyChanges(final String key,
+            final Map<Name, Property> before, final Map<Name, Property> after,
+            final ConnectorChangeSet changes) {
+        int recorded = 0;
+        for (final Map.Entry<Name, Property> property : after.entrySet()) {
+            final Property old = before.get(property.getKey());
+            if (old == null) {
+                changes.propertyAdded(key, key, property.getValue());
+                recorded++;
+            } else if (!old.equals(property.getValue())) {
+                changes.propertyChanged(key, key, old, property.getValue());
+                recorded++;
+            }
+        }
+        for (final Map.Entry<Name, Property> property : before.entrySet()) {
+            if (!after.containsKey(property.getKey())) {
+                changes.propertyRemoved(key, key, property.getValue());
+                recorded++;
+            }
+        }
+        return recorded;
+    }
+
+    /**
+     * @return a new change set, for the {@link ChangeSetBatcher}
+     */
+    ConnectorChangeSet newChangeSet() {
+        return newConnectorChangedSet();
     }
 }
@@ -19,6 +19,7 @@ package org.fcrepo.federation.bagit;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.modeshape.jcr.cache.DocumentStoreException;
@@ -62,6 +63,7 @@ public class BagItExtraPropertiesStore implements ExtraPropertiesStore {
         try {
             bagInfo.setProperties(properties);
             bagInfo.save();
+            connector.refreshBagSnapshot(bagInfo.bagID);
         } catch (final Exception ex) {
             throw new DocumentStoreException(
                     "Error in storing properties for " + bagInfo.bagID +
@@ -76,7 +78,8 @@ public class BagItExtraPropertiesStore implements ExtraPropertiesStore {
         if (bagInfo == null) {
             return;
         }
-        final Map<Name, Property> existing = bagInfo.getProperties();
+        final Map<Name, Property> existing =
+                new HashMap<Name, Property>(bagInfo.getProperties());
         for (final Map.Entry<Name, Property> entry : properties.entrySet()) {
             final Name name = entry.getKey();
             final Property prop = entry.getValue();
@@ -92,29 +95,26 @@ public class BagItExtraPropertiesStore implements ExtraPropertiesStore {
     @Override
     public Map<Name, Property> getProperties(final String id) {
 
-        final BagInfo bagInfo = connector.getBagInfo(id);
-        if (bagInfo == null) {
+        final BagSnapshot snapshot = connector.getBagSnapshot(id);
+        if (snapshot == null) {
             if (!"/".equals(id)) logger.trace("No bag-info.txt for " + id);
             return EMPTY;
         }
         logger.trace("Operating on bagInfoFile(" + id + "):" +
-                bagInfo.getFilepath());
-        try {
-            return bagInfo.getProperties();
-        } catch (final Exception ex) {
-            throw new DocumentStoreException(id, ex);
-        }
+                snapshot.getBagInfoFile());
+        return snapshot.getProperties();
     }
 
     @Override
     public boolean removeProperties(final String id) {
         final BagInfo bagInfo = connector.getBagInfo(id);
-        if (!bagInfo.exists()) {
+        if (bagInfo == null || !bagInfo.exists()) {
             return false;
         } else {
             try {
                 final boolean result = bagInfo.delete();
                 bagInfo.save();
+                connector.refreshBagSnapshot(bagInfo.bagID);
                 return result;
             } catch (final IOException ex) {
                 throw new DocumentStoreException(
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The sorted names of the bags in the root directory, read once at startup
+ * and then kept current from {@link ManifestMonitor} events, so that the
+ * projection root and its pages are listed from memory rather than by
+ * scanning a directory of many thousands of bags.
+ */
+public class BagRegistry {
+
+    /**
+     * Accepts the readable directories, i.e. the candidate bags.
+     */
+    static final DirectoryStream.Filter<Path> BAG_DIRECTORIES =
+            new DirectoryStream.Filter<Path>() {
+
+                @Override
+                public boolean accept(final Path entry) {
+                    return isBagDirectory(entry);
+                }
+            };
+
+    private static final int MAX_PAGE_STARTS = 64;
+
+    private final ConcurrentSkipListSet<String> names =
+            new ConcurrentSkipListSet<String>();
+
+    /**
+     * Kept beside the set, whose size() is a walk.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * The first name of each page handed out with more to come, by offset, so
+     * that the next page starts from there rather than walking the set from
+     * the beginning. Dropped whenever the set changes.
+     */
+    private final ConcurrentMap<Integer, String> pageStarts =
+            new ConcurrentHashMap<Integer, String>();
+
+    /**
+     * @param path an entry of the root directory
+     * @return true if it is a readable directory
+     */
+    public static boolean isBagDirectory(final Path path) {
+        final FileAttributes attrs = FileAttributes.read(path);
+        return attrs != null && attrs.isDirectory() && attrs.isReadable();
+    }
+
+    /**
+     * Adds every bag directory in the root and drops the names of those no
+     * longer there, so it may be called again to catch up with changes made
+     * while nothing watched the root.
+     *
+     * @param root the root directory
+     * @return the number of bags found
+     * @throws IOException if the root cannot be listed
+     */
+    public int load(final Path root) throws IOException {
+        IoStatistics.directoryRead();
+        final Set<String> found = new HashSet<String>();
+        try (final DirectoryStream<Path> entries =
+                Files.newDirectoryStream(root, BAG_DIRECTORIES)) {
+            for (final Path entry : entries) {
+                final String name = entry.getFileName().toString();
+                found.add(name);
+                add(name);
+            }
+        } catch (final DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        for (final String name : names) {
+            if (!found.contains(name)) {
+                remove(name);
+            }
+        }
+        return found.size();
+    }
+
+    /**
+     * @param name the name of a bag directory
+     * @return true if the bag was not registered yet
+     */
+    public boolean add(final String name) {
+        if (names.add(name)) {
+            size.incrementAndGet();
+            pageStarts.clear();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param name the name of a bag directory
+     * @return true if the bag was registered
+     */
+    public boolean remove(final String name) {
+        if (names.remove(name)) {
+            size.decrementAndGet();
+            pageStarts.clear();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(final String name) {
+        return names.contains(name);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return a read-only, weakly consistent view of the names, in order
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * @param offset the number of names on earlier pages
+     * @param count the maximum number of names to return
+     * @return the names on the page, in order
+     */
+    public List<String> page(final int offset, final int count) {
+        final List<String> page = new ArrayList<String>(Math.min(count, 1024));
+        final String start = pageStarts.get(offset);
+        final NavigableSet<String> from =
+                start == null ? names : names.tailSet(start, true);
+        final Iterator<String> it = from.iterator();
+        int skipped = start == null ? 0 : offset;
+        while (skipped < offset && it.hasNext()) {
+            it.next();
+            skipped++;
+        }
+        while (page.size() < count && it.hasNext()) {
+            page.add(it.next());
+        }
+        if (it.hasNext()) {
+            if (pageStarts.size() >= MAX_PAGE_STARTS) {
+                pageStarts.clear();
+            }
+            pageStarts.put(offset + page.size(), it.next());
+        }
+        return page;
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+import gov.loc.repository.bagit.Bag.BagConstants;
+import gov.loc.repository.bagit.BagFactory;
+import gov.loc.repository.bagit.BagFactory.Version;
+import gov.loc.repository.bagit.impl.BagItTxtImpl;
+import gov.loc.repository.bagit.impl.FileBagFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.NameFactory;
+import org.modeshape.jcr.value.Property;
+import org.modeshape.jcr.value.PropertyFactory;
+import org.slf4j.Logger;
+
+/**
+ * An immutable view of the metadata of one bag: the declaration in bagit.txt,
+ * the bag-info.txt fields as ready-made JCR properties, and the catalog of
+ * payload and tag manifests. A snapshot is read once and shared by every
+ * reader of the bag until the {@link ManifestMonitor} sees a change and the
+ * connector swaps in a new one, so the read path never re-parses tag files.
+ */
+public final class BagSnapshot {
+
+    private static final Logger logger = getLogger(BagSnapshot.class);
+
+    private static final BagFactory bagFactory = new BagFactory();
+
+    private static final String BAGIT_TXT = "bagit.txt";
+
+    private final String bagId;
+
+    private final File directory;
+
+    private final String declaredVersion;
+
+    private final String encoding;
+
+    private final BagConstants bagConstants;
+
+    private final File bagInfoFile;
+
+    private final FileStamp bagInfoStamp;
+
+    private final Map<Name, Property> properties;
+
+    private final List<ManifestFile> payloadManifests;
+
+    private final List<ManifestFile> tagManifests;
+
+    BagSnapshot(final String bagId, final File directory,
+            final String declaredVersion, final String encoding,
+            final BagConstants bagConstants, final File bagInfoFile,
+            final FileStamp bagInfoStamp, final Map<Name, Property> properties,
+            final List<ManifestFile> payloadManifests,
+            final List<ManifestFile> tagManifests) {
+        this.bagId = bagId;
+        this.directory = directory;
+        this.declaredVersion = declaredVersion;
+        this.encoding = encoding;
+        this.bagConstants = bagConstants;
+        this.bagInfoFile = bagInfoFile;
+        this.bagInfoStamp = bagInfoStamp;
+        this.properties = properties;
+        this.payloadManifests = payloadManifests;
+        this.tagManifests = tagManifests;
+    }
+
+    /**
+     * Reads the metadata of a bag.
+     *
+     * @param bagId the id of the bag node
+     * @param directory the bag directory
+     * @param propertyFactory used to build the bag-info.txt properties
+     * @param nameFactory used to name the bag-info.txt properties
+     * @return the snapshot, or null if the directory does not exist
+     */
+    public static BagSnapshot read(final String bagId, final File directory,
+            final PropertyFactory propertyFactory,
+            final NameFactory nameFactory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        final File bagItTxt = new File(directory, BAGIT_TXT);
+        String declaredVersion = null;
+        String encoding = null;
+        BagConstants bagConstants = bagFactory.getBagConstants();
+        if (bagItTxt.isFile()) {
+            final BagItTxtImpl declaration =
+                    new BagItTxtImpl(new FileBagFile(BAGIT_TXT, bagItTxt),
+                            bagConstants);
+            declaredVersion = declaration.getVersion();
+            encoding = declaration.getCharacterEncoding();
+            bagConstants = constantsFor(declaredVersion, bagConstants);
+        }
+        if (encoding == null) {
+            encoding = bagConstants.getBagEncoding();
+        }
+
+        final List<ManifestFile> payloadManifests =
+                new ArrayList<ManifestFile>(2);
+        final List<ManifestFile> tagManifests = new ArrayList<ManifestFile>(2);
+        for (final File file : files) {
+            final String name = file.getName();
+            String algorithm = ManifestUtil.getManifestAlgorithm(name);
+            if (algorithm != null) {
+                payloadManifests.add(new ManifestFile(file, algorithm, false));
+                continue;
+            }
+            algorithm = ManifestUtil.getTagManifestAlgorithm(name);
+            if (algorithm != null) {
+                tagManifests.add(new ManifestFile(file, algorithm, true));
+            }
+        }
+
+        final File bagInfoFile =
+                new File(directory, bagConstants.getBagInfoTxt());
+        final FileStamp bagInfoStamp = FileStamp.of(bagInfoFile);
+        final Map<Name, Property> properties;
+        if (bagInfoStamp.exists()) {
+            properties =
+                    new BagInfo(bagId, new FileBagFile(bagInfoFile
+                            .getAbsolutePath(), bagInfoFile), propertyFactory,
+                            nameFactory, bagConstants).getProperties();
+        } else {
+            properties = BagItExtraPropertiesStore.EMPTY;
+        }
+        logger.trace("Read snapshot of {}: version {}, manifests {}, {}",
+                bagId, declaredVersion, payloadManifests, tagManifests);
+        return new BagSnapshot(bagId, directory, declaredVersion, encoding,
+                bagConstants, bagInfoFile, bagInfoStamp, properties,
+                Collections.unmodifiableList(payloadManifests), Collections
+                        .unmodifiableList(tagManifests));
+    }
+
+    private static BagConstants constantsFor(final String version,
+            final BagConstants defaultConstants) {
+        if (version == null) {
+            return defaultConstants;
+        }
+        try {
+            return bagFactory.getBagConstants(Version.valueOfString(version
+                    .trim()));
+        } catch (final RuntimeException e) {
+            logger.debug("Unrecognized BagIt-Version {}, assuming {}",
+                    version, defaultConstants.getVersion());
+            return defaultConstants;
+        }
+    }
+
+    public String getBagId() {
+        return bagId;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the BagIt-Version declared in bagit.txt, or null if there is
+     *         no declaration
+     */
+    public String getDeclaredVersion() {
+        return declaredVersion;
+    }
+
+    /**
+     * @return the Tag-File-Character-Encoding declared in bagit.txt
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return the constants for the declared version, or for the latest
+     *         version the library knows if the declaration is missing
+     */
+    public BagConstants getBagConstants() {
+        return bagConstants;
+    }
+
+    /**
+     * @return where the bag-info.txt of this bag is (or would be)
+     */
+    public File getBagInfoFile() {
+        return bagInfoFile;
+    }
+
+    public FileStamp getBagInfoStamp() {
+        return bagInfoStamp;
+    }
+
+    /**
+     * @return the bag-info.txt fields as JCR properties
+     */
+    public Map<Name, Property> getProperties() {
+        return properties;
+    }
+
+    public List<ManifestFile> getPayloadManifests() {
+        return payloadManifests;
+    }
+
+    public List<ManifestFile> getTagManifests() {
+        return tagManifests;
+    }
+
+    public boolean hasPayloadManifests() {
+        return !payloadManifests.isEmpty();
+    }
+}
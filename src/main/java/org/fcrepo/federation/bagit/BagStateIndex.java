@@ -0,0 +1,304 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * The last known state of each bag, kept in a small file so that a restart
+ * can tell which bags changed while the connector was down, instead of
+ * announcing every bag as new. The state of a bag is a digest of its payload
+ * manifests (names, sizes and modification times), the modification time of
+ * its bag-info.txt and the modification time of its data/ directory. The
+ * last moves whenever an entry is added to data/ or removed from it, and is
+ * taken with one stat, so recording a bag never lists its payload.
+ */
+public class BagStateIndex {
+
+    private static final Logger logger = getLogger(BagStateIndex.class);
+
+    private static final int MAGIC = 0x42414753;
+
+    private static final int VERSION = 2;
+
+    private static final Comparator<ManifestFile> BY_NAME =
+            new Comparator<ManifestFile>() {
+
+                @Override
+                public int compare(final ManifestFile a, final ManifestFile b) {
+                    return a.getFile().getName().compareTo(
+                            b.getFile().getName());
+                }
+            };
+
+    private final Path file;
+
+    private final Path tempFile;
+
+    private final ConcurrentMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+
+    private volatile boolean dirty;
+
+    /**
+     * @param file where the index is kept
+     */
+    public BagStateIndex(final Path file) {
+        this.file = file;
+        this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    /**
+     * Reads the index saved last. A missing file is an empty index; so is an
+     * unreadable one, which makes every bag look new as it did before there
+     * was an index.
+     *
+     * @return the number of bags read
+     */
+    public synchronized int load() {
+        entries.clear();
+        try (final DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files
+                        .newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Ignoring bag state index of another format: " +
+                        file);
+                return 0;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String name = in.readUTF();
+                entries.put(name, new Entry(in.readInt(), in.readLong(), in
+                        .readLong(), in.readLong()));
+            }
+        } catch (final NoSuchFileException e) {
+            logger.info("No bag state index at {}, starting afresh", file);
+        } catch (final EOFException e) {
+            logger.warn("Ignoring truncated bag state index: " + file);
+            entries.clear();
+        } catch (final IOException e) {
+            logger.warn("Cannot read bag state index: " + file, e);
+            entries.clear();
+        }
+        dirty = false;
+        return entries.size();
+    }
+
+    /**
+     * Writes the index if it changed since it was loaded or saved. It is
+     * written to a temporary file and moved into place, so that a crash
+     * leaves the previous index whole. A failure is logged, and the next
+     * save tries again.
+     *
+     * @return false if the index could not be written
+     */
+    public synchronized boolean save() {
+        if (!dirty) {
+            return true;
+        }
+        dirty = false;
+        final List<Map.Entry<String, Entry>> snapshot =
+                new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+        try {
+            try (final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(Files
+                            .newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (final Map.Entry<String, Entry> bag : snapshot) {
+                    final Entry entry = bag.getValue();
+                    out.writeUTF(bag.getKey());
+                    out.writeInt(entry.manifests);
+                    out.writeLong(entry.manifestDigest);
+                    out.writeLong(entry.bagInfoModified);
+                    out.writeLong(entry.dataModified);
+                }
+            }
+            try {
+                Files.move(tempFile, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, REPLACE_EXISTING);
+            }
+        } catch (final IOException e) {
+            dirty = true;
+            logger.warn("Could not save the bag state index: " + file, e);
+            return false;
+        }
+        logger.debug("Saved the state of {} bags to {}", snapshot.size(),
+                file);
+        return true;
+    }
+
+    /**
+     * @param name the name of a bag directory
+     * @return its state as last recorded, or null if it is not known
+     */
+    public Entry get(final String name) {
+        return entries.get(name);
+    }
+
+    public void put(final String name, final Entry entry) {
+        if (!entry.equals(entries.put(name, entry))) {
+            dirty = true;
+        }
+    }
+
+    public void remove(final String name) {
+        if (entries.remove(name) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return the names of the bags recorded
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param path a file
+     * @return true if it is the index file, or the file it is written to
+     *         first, whose changes are no business of the monitor
+     */
+    public boolean isIndexFile(final Path path) {
+        return path.equals(file) || path.equals(tempFile);
+    }
+
+    /**
+     * Takes the state of a bag.
+     *
+     * @param bag the bag directory
+     * @param snapshot its metadata, as just read
+     * @return its state
+     */
+    public static Entry stateOf(final Path bag, final BagSnapshot snapshot) {
+        final List<ManifestFile> manifests =
+                new ArrayList<ManifestFile>(snapshot.getPayloadManifests());
+        Collections.sort(manifests, BY_NAME);
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (final ManifestFile manifest : manifests) {
+            final FileStamp stamp = FileStamp.of(manifest.getFile());
+            hasher.putString(manifest.getFile().getName(), UTF_8).putLong(
+                    stamp.lastModified()).putLong(stamp.size());
+        }
+        return new Entry(manifests.size(), manifests.isEmpty() ? 0L : hasher
+                .hash().asLong(), snapshot.getBagInfoStamp().lastModified(),
+                lastModified(bag.resolve(IdTranslator.DATA)));
+    }
+
+    /**
+     * @return the modification time of a directory in nanoseconds, as fine
+     *         as the filesystem keeps it; or -1 if it cannot be stat'ed
+     */
+    private static long lastModified(final Path dir) {
+        IoStatistics.stat();
+        try {
+            return Files.getLastModifiedTime(dir).to(NANOSECONDS);
+        } catch (final IOException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * The state of one bag.
+     */
+    public static final class Entry {
+
+        private final int manifests;
+
+        private final long manifestDigest;
+
+        private final long bagInfoModified;
+
+        private final long dataModified;
+
+        Entry(final int manifests, final long manifestDigest,
+                final long bagInfoModified, final long dataModified) {
+            this.manifests = manifests;
+            this.manifestDigest = manifestDigest;
+            this.bagInfoModified = bagInfoModified;
+            this.dataModified = dataModified;
+        }
+
+        /**
+         * @return true if the bag had a payload manifest, i.e. was a node
+         */
+        public boolean hasManifests() {
+            return manifests > 0;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry that = (Entry) o;
+            return manifests == that.manifests &&
+                    manifestDigest == that.manifestDigest &&
+                    bagInfoModified == that.bagInfoModified &&
+                    dataModified == that.dataModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (manifestDigest ^ (manifestDigest >>> 32)) * 31 +
+                    (int) (bagInfoModified ^ (bagInfoModified >>> 32)) * 17 +
+                    (int) (dataModified ^ (dataModified >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return "Entry(" + manifests + ", " + manifestDigest + ", " +
+                    bagInfoModified + ", " + dataModified + ")";
+        }
+    }
+}
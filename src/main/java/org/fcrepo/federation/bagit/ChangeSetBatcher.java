@@ -0,0 +1,251 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.modeshape.jcr.federation.spi.ConnectorChangeSet;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Collects bag events into one {@link ConnectorChangeSet} and publishes it
+ * when it holds a given number of changes or a short window has passed since
+ * the first, whichever comes first. Every publish costs the repository a
+ * cache invalidation and an event dispatch round, so hundreds of bags
+ * arriving together are better sent as a few change sets than hundreds.
+ */
+public class ChangeSetBatcher {
+
+    private static final Logger logger = getLogger(ChangeSetBatcher.class);
+
+    /**
+     * One change to record in a change set.
+     */
+    public interface Change {
+
+        void record(ConnectorChangeSet changes);
+    }
+
+    private final BagItConnector connector;
+
+    private final int maxChanges;
+
+    private final long windowMillis;
+
+    private final ScheduledExecutorService timer;
+
+    private ConnectorChangeSet current;
+
+    private int currentSize;
+
+    /**
+     * The closed batches not yet published, oldest first.
+     */
+    private final Queue<ConnectorChangeSet> ready =
+            new ArrayDeque<ConnectorChangeSet>();
+
+    /**
+     * Whether a thread is publishing the ready batches; others leave new
+     * batches to it rather than publish out of order.
+     */
+    private boolean publishing;
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong changes = new AtomicLong();
+
+    private final AtomicLong largestBatch = new AtomicLong();
+
+    private final AtomicLong publishNanos = new AtomicLong();
+
+    /**
+     * @param connector creates the change sets
+     * @param maxChanges the number of changes that triggers a publish
+     * @param windowMillis how long a change may wait for others; 0 publishes
+     *        every change on its own
+     */
+    public ChangeSetBatcher(final BagItConnector connector,
+            final int maxChanges, final long windowMillis) {
+        this.connector = connector;
+        this.maxChanges = maxChanges;
+        this.windowMillis = windowMillis;
+        if (windowMillis > 0) {
+            this.timer =
+                    Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder().setDaemon(true)
+                                    .setNameFormat("bagit-publisher-%d")
+                                    .build());
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Records a change in the current batch, publishing the batch if it is
+     * full.
+     *
+     * @param change the change
+     */
+    public void add(final Change change) {
+        final boolean full;
+        synchronized (this) {
+            final boolean first = current == null;
+            if (first) {
+                current = connector.newChangeSet();
+            }
+            change.record(current);
+            currentSize++;
+            full = timer == null || currentSize >= maxChanges;
+            if (full) {
+                close();
+            } else if (first) {
+                schedule();
+            }
+        }
+        if (full) {
+            publishReady();
+        }
+    }
+
+    /**
+     * Publishes the current batch now, unless another thread is publishing,
+     * in which case that thread publishes it after its own. The lock is only
+     * held to swap the batch out, so recording changes never waits on the
+     * repository, while batches still reach it in the order they were
+     * closed.
+     */
+    public void flush() {
+        synchronized (this) {
+            close();
+        }
+        publishReady();
+    }
+
+    /**
+     * Publishes the current batch and stops the timer.
+     */
+    public void shutdown() {
+        flush();
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        logger.debug("Published {} changes in {} batches, "
+                + "mean batch {}, largest {}, mean publish {} ms", changes
+                .get(), batches.get(), getMeanBatchSize(), largestBatch.get(),
+                getMeanPublishMillis());
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getChanges() {
+        return changes.get();
+    }
+
+    public long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    public double getMeanBatchSize() {
+        final long count = batches.get();
+        return count == 0 ? 0.0 : (double) changes.get() / count;
+    }
+
+    /**
+     * @return the mean time taken by a publish, in milliseconds
+     */
+    public double getMeanPublishMillis() {
+        final long count = batches.get();
+        return count == 0 ? 0.0 : publishNanos.get() / 1e6 / count;
+    }
+
+    private void schedule() {
+        try {
+            timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            logger.debug("Not scheduling a publish, shut down");
+        }
+    }
+
+    /**
+     * Moves the current batch to the ready queue. Called holding the lock.
+     */
+    private void close() {
+        final ConnectorChangeSet batch = current;
+        if (batch == null) {
+            return;
+        }
+        changes.addAndGet(currentSize);
+        if (currentSize > largestBatch.get()) {
+            largestBatch.set(currentSize);
+        }
+        current = null;
+        currentSize = 0;
+        ready.add(batch);
+    }
+
+    private void publishReady() {
+        synchronized (this) {
+            if (publishing) {
+                return;
+            }
+            publishing = true;
+        }
+        while (true) {
+            final ConnectorChangeSet batch;
+            synchronized (this) {
+                batch = ready.poll();
+                if (batch == null) {
+                    publishing = false;
+                    return;
+                }
+            }
+            try {
+                publish(batch);
+            } catch (final RuntimeException e) {
+                logger.warn("Could not publish a change set", e);
+            }
+        }
+    }
+
+    private void publish(final ConnectorChangeSet batch) {
+        final long start = System.nanoTime();
+        try {
+            batch.publish(null);
+        } finally {
+            publishNanos.addAndGet(System.nanoTime() - start);
+            batches.incrementAndGet();
+        }
+    }
+}
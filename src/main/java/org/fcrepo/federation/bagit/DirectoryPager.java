@@ -0,0 +1,250 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+/**
+ * Reads directory entries a page at a time from a {@link DirectoryStream},
+ * so that a directory with hundreds of thousands of entries is never loaded
+ * whole. When a page ends before the directory does, the open stream is kept
+ * as a cursor under the offset of the next page, and a request for that page
+ * continues it instead of re-reading and skipping the entries before it. A
+ * bounded number of cursors is kept open; idle ones are closed.
+ */
+public class DirectoryPager implements Closeable {
+
+    private static final Logger logger = getLogger(DirectoryPager.class);
+
+    private final int maxCursors;
+
+    private final long cursorTimeoutMillis;
+
+    private final LinkedHashMap<String, Cursor> cursors =
+            new LinkedHashMap<String, Cursor>(16, 0.75f, false);
+
+    /**
+     * @param maxCursors the number of paused directory streams to keep open
+     * @param cursorTimeoutMillis how long a paused stream may go unused
+     */
+    public DirectoryPager(final int maxCursors, final long cursorTimeoutMillis) {
+        this.maxCursors = maxCursors;
+        this.cursorTimeoutMillis = cursorTimeoutMillis;
+    }
+
+    /**
+     * Reads up to count accepted entries of a directory, starting after the
+     * first offset accepted entries.
+     *
+     * @param dir the directory
+     * @param offset the number of accepted entries to skip
+     * @param count the maximum number of entries to return
+     * @param filter decides which entries count
+     * @return the page
+     * @throws IOException if the directory cannot be read
+     */
+    public Page read(final Path dir, final int offset, final int count,
+            final DirectoryStream.Filter<? super Path> filter)
+        throws IOException {
+        Cursor cursor = take(dir, offset);
+        if (cursor == null) {
+            IoStatistics.directoryRead();
+            cursor = new Cursor(dir, Files.newDirectoryStream(dir, filter));
+            if (offset > 0) {
+                logger.debug("Skipping {} entries of {} to reach a page",
+                        offset, dir);
+            }
+        }
+        final List<Path> entries =
+                new ArrayList<Path>(Math.min(count, 1024));
+        final boolean more;
+        try {
+            while (cursor.position < offset && cursor.hasNext()) {
+                cursor.next();
+            }
+            while (entries.size() < count && cursor.hasNext()) {
+                entries.add(cursor.next());
+            }
+            more = cursor.hasNext();
+        } catch (final DirectoryIteratorException e) {
+            cursor.close();
+            throw e.getCause();
+        }
+        if (more) {
+            park(cursor);
+        } else {
+            cursor.close();
+        }
+        return new Page(entries, more);
+    }
+
+    /**
+     * Closes every paused stream.
+     */
+    @Override
+    public void close() {
+        final List<Cursor> open;
+        synchronized (cursors) {
+            open = new ArrayList<Cursor>(cursors.values());
+            cursors.clear();
+        }
+        for (final Cursor cursor : open) {
+            cursor.close();
+        }
+    }
+
+    int openCursors() {
+        synchronized (cursors) {
+            return cursors.size();
+        }
+    }
+
+    private Cursor take(final Path dir, final int offset) {
+        final List<Cursor> closing = new ArrayList<Cursor>(0);
+        final Cursor cursor;
+        synchronized (cursors) {
+            // sweep here too, so idle streams are closed even when nothing
+            // is parked for a while
+            sweep(closing);
+            cursor = cursors.remove(key(dir, offset));
+        }
+        closeAll(closing);
+        return cursor;
+    }
+
+    private void park(final Cursor cursor) {
+        final List<Cursor> closing = new ArrayList<Cursor>(1);
+        synchronized (cursors) {
+            final Cursor old =
+                    cursors.put(key(cursor.dir, cursor.position), cursor);
+            if (old != null) {
+                closing.add(old);
+            }
+            sweep(closing);
+        }
+        closeAll(closing);
+    }
+
+    /**
+     * Removes the eldest cursors while there are too many or they have been
+     * idle too long; cursors are parked in order of use, so the first one
+     * kept ends the sweep. Called holding the lock on the cursors.
+     */
+    private void sweep(final List<Cursor> closing) {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Cursor>> it =
+                cursors.entrySet().iterator();
+        while (it.hasNext()) {
+            final Cursor eldest = it.next().getValue();
+            if (cursors.size() > maxCursors ||
+                    now - eldest.lastUsed > cursorTimeoutMillis) {
+                closing.add(eldest);
+                it.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static void closeAll(final List<Cursor> closing) {
+        for (final Cursor stale : closing) {
+            stale.close();
+        }
+    }
+
+    private static String key(final Path dir, final int offset) {
+        return dir.toString() + '#' + offset;
+    }
+
+    /**
+     * A page of directory entries.
+     */
+    public static final class Page {
+
+        private final List<Path> entries;
+
+        private final boolean more;
+
+        Page(final List<Path> entries, final boolean more) {
+            this.entries = entries;
+            this.more = more;
+        }
+
+        public List<Path> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return true if the directory has entries after this page
+         */
+        public boolean hasMore() {
+            return more;
+        }
+    }
+
+    private static final class Cursor {
+
+        final Path dir;
+
+        final DirectoryStream<Path> stream;
+
+        final Iterator<Path> iterator;
+
+        int position;
+
+        long lastUsed;
+
+        Cursor(final Path dir, final DirectoryStream<Path> stream) {
+            this.dir = dir;
+            this.stream = stream;
+            this.iterator = stream.iterator();
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        Path next() {
+            position++;
+            lastUsed = System.currentTimeMillis();
+            return iterator.next();
+        }
+
+        void close() {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                logger.debug("Could not close directory stream on " + dir, e);
+            }
+        }
+    }
+}
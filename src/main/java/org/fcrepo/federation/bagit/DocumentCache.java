@@ -0,0 +1,229 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.infinispan.schematic.document.Document;
+import org.slf4j.Logger;
+
+/**
+ * A bounded, least-recently-used cache of the documents built by
+ * {@link BagItConnector#getDocumentById(String)}. Each entry remembers the
+ * {@link FileStamp}s of the files it was built from (the file or listed
+ * directory, and bag-info.txt for bags or the payload manifests for
+ * datastreams) and is only handed out while those stamps still match the
+ * disk, so a repeat read costs a stat instead of a rebuild. Documents are
+ * mutable, so the cache keeps a copy of its own and hands out copies of
+ * that. Entries are evicted when either the entry count or the total weight
+ * (roughly, the number of child references held) exceeds its bound.
+ */
+public class DocumentCache {
+
+    private static final Logger logger = getLogger(DocumentCache.class);
+
+    private final int maxEntries;
+
+    private final long maxWeight;
+
+    private long weight;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * @param maxEntries the maximum number of documents held; 0 disables the
+     *        cache
+     * @param maxWeight the maximum total weight of documents held
+     */
+    public DocumentCache(final int maxEntries, final long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * @param id the document id
+     * @return a copy of the cached document, or null if there is none or
+     *         the files it was built from have changed since
+     */
+    public Document get(final String id) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+        }
+        if (entry == null) {
+            return null;
+        }
+        // stat outside the lock
+        if (entry.isCurrent()) {
+            return entry.document.clone();
+        }
+        logger.trace("Cached document {} is stale", id);
+        synchronized (this) {
+            if (entries.get(id) == entry) {
+                remove(id);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param id the document id
+     * @return a copy of the cached document as it was built, whether or not
+     *         the files it was built from have changed since; or null if
+     *         there is none
+     */
+    public Document peek(final String id) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+        }
+        return entry == null ? null : entry.document.clone();
+    }
+
+    /**
+     * Caches a document. The stamps must have been taken before the document
+     * was built, so that a change made during the build is not masked.
+     *
+     * @param id the document id
+     * @param document the built document; null documents are not cached
+     * @param file the file (or listed directory) the document reflects
+     * @param fileStamp the stamp of that file
+     * @param related the other files the document reflects (bag-info.txt of
+     *        a bag, the payload manifests of a datastream), or null
+     * @param relatedStamps the stamps of those files, in the same order
+     * @param weight the relative cost of holding this document
+     */
+    public void put(final String id, final Document document,
+            final File file, final FileStamp fileStamp, final File[] related,
+            final FileStamp[] relatedStamps, final long weight) {
+        if (document == null || maxEntries <= 0 || weight > maxWeight) {
+            return;
+        }
+        final Entry entry =
+                new Entry(document.clone(), file, fileStamp, related,
+                        relatedStamps, weight);
+        synchronized (this) {
+            remove(id);
+            entries.put(id, entry);
+            this.weight += weight;
+            evict();
+        }
+    }
+
+    /**
+     * Drops the document with the given id.
+     *
+     * @param id the document id
+     */
+    public synchronized void invalidate(final String id) {
+        remove(id);
+    }
+
+    /**
+     * Drops the document with the given id and all of its descendants.
+     *
+     * @param id the document id
+     */
+    public synchronized void invalidateTree(final String id) {
+        remove(id);
+        final String prefix = id.endsWith("/") ? id : id + "/";
+        final Iterator<Map.Entry<String, Entry>> it =
+                entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                weight -= e.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    private void remove(final String id) {
+        final Entry old = entries.remove(id);
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+
+    private void evict() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) &&
+                it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    private static final class Entry {
+
+        final Document document;
+
+        final File file;
+
+        final FileStamp fileStamp;
+
+        final File[] related;
+
+        final FileStamp[] relatedStamps;
+
+        final long weight;
+
+        Entry(final Document document, final File file,
+                final FileStamp fileStamp, final File[] related,
+                final FileStamp[] relatedStamps, final long weight) {
+            this.document = document;
+            this.file = file;
+            this.fileStamp = fileStamp;
+            this.related = related;
+            this.relatedStamps = relatedStamps;
+            this.weight = weight;
+        }
+
+        boolean isCurrent() {
+            if (!fileStamp.exists() || !fileStamp.equals(FileStamp.of(file))) {
+                return false;
+            }
+            if (related != null) {
+                for (int i = 0; i < related.length; i++) {
+                    if (!relatedStamps[i].equals(FileStamp.of(related[i]))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
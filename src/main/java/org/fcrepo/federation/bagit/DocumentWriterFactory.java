@@ -19,6 +19,8 @@ package org.fcrepo.federation.bagit;
 import org.modeshape.jcr.cache.document.DocumentTranslator;
 import org.modeshape.jcr.federation.FederatedDocumentWriter;
 import org.modeshape.jcr.federation.spi.DocumentWriter;
+import org.modeshape.jcr.federation.spi.PageKey;
+import org.modeshape.jcr.federation.spi.PageWriter;
 
 /**
  * This class really exists only to facilitate testing around some cyclical
@@ -45,4 +47,9 @@ public class DocumentWriterFactory {
     public DocumentWriter getDocumentWriter(final String id) {
         return new FederatedDocumentWriter(m_translator).setId(id);
     }
+
+    public PageWriter getPageWriter(final PageKey pageKey) {
+        return new FederatedDocumentWriter(m_translator).setId(pageKey
+                .toString());
+    }
 }
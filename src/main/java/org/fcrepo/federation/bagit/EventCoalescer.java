@@ -0,0 +1,251 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Merges the events seen for a bag into one net event, which is handed on
+ * once the bag has been quiet for a while. An rsync of a large bag produces
+ * thousands of watch events; this turns them into a single create. Pending
+ * events are kept in a map of immutable states that is updated with
+ * compare-and-set, so the watching thread never blocks on a dispatch.
+ */
+public class EventCoalescer {
+
+    private static final Logger logger = getLogger(EventCoalescer.class);
+
+    /**
+     * The kinds of event, weakest first.
+     */
+    public enum Kind {
+        /**
+         * Nothing to report, e.g. a bag created and deleted again.
+         */
+        NONE,
+        /**
+         * Only the tag manifests changed; re-read the bag's metadata.
+         */
+        REFRESHED,
+        MODIFIED, CREATED, REMOVED;
+
+        /**
+         * @param next the event that followed this one
+         * @return the net effect of this event and the next
+         */
+        Kind then(final Kind next) {
+            switch (next) {
+                case CREATED:
+                    // re-created after a removal is a change
+                    return this == REMOVED || this == MODIFIED ? MODIFIED
+                            : CREATED;
+                case REMOVED:
+                    return this == CREATED ? NONE : REMOVED;
+                case MODIFIED:
+                    // a removal stands: rm -rf of a bag reports changes in
+                    // its payload after the bag itself is gone
+                    return this == CREATED || this == REMOVED ? this
+                            : MODIFIED;
+                case REFRESHED:
+                    return this == NONE ? REFRESHED : this;
+                default:
+                    return this;
+            }
+        }
+    }
+
+    /**
+     * Receives the net events.
+     */
+    public interface Handler {
+
+        /**
+         * @param bag the bag directory
+         * @param kind the net event; never NONE
+         * @param firstEvent when the first of the merged events was seen
+         */
+        void handle(Path bag, Kind kind, long firstEvent);
+    }
+
+    private final Handler handler;
+
+    private final long quietMillis;
+
+    private final ConcurrentMap<Path, Pending> pending =
+            new ConcurrentHashMap<Path, Pending>();
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param handler receives the net events
+     * @param quietMillis how long a bag must go without events before its
+     *        net event is handed on; 0 hands every event on at once
+     */
+    public EventCoalescer(final Handler handler, final long quietMillis) {
+        this.handler = handler;
+        this.quietMillis = quietMillis;
+        if (quietMillis > 0) {
+            this.timer =
+                    Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder().setDaemon(true)
+                                    .setNameFormat("bagit-coalescer-%d")
+                                    .build());
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Records an event for a bag.
+     *
+     * @param bag the bag directory
+     * @param kind what happened
+     */
+    public void add(final Path bag, final Kind kind) {
+        final long now = System.currentTimeMillis();
+        if (timer == null) {
+            dispatch(bag, kind, now);
+            return;
+        }
+        while (true) {
+            final Pending current = pending.get(bag);
+            if (current == null) {
+                if (pending.putIfAbsent(bag, new Pending(kind, now, now, 1))
+                        == null) {
+                    schedule(bag, quietMillis);
+                    return;
+                }
+            } else {
+                final Pending merged =
+                        new Pending(current.kind.then(kind),
+                                current.firstEvent, now, current.events + 1);
+                if (pending.replace(bag, current, merged)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of bags with events waiting for quiet
+     */
+    public int pendingBags() {
+        return pending.size();
+    }
+
+    /**
+     * Hands on every pending event now, without waiting for quiet.
+     */
+    public void flush() {
+        for (final Path bag : pending.keySet()) {
+            final Pending current = pending.remove(bag);
+            if (current != null) {
+                dispatch(bag, current.kind, current.firstEvent);
+            }
+        }
+    }
+
+    /**
+     * Stops the timer; pending events are dropped.
+     */
+    public void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        pending.clear();
+    }
+
+    private void schedule(final Path bag, final long delayMillis) {
+        try {
+            timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    expire(bag);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            logger.debug("Not scheduling events for {}, shut down", bag);
+        }
+    }
+
+    /**
+     * Hands on the net event for a bag if it has been quiet long enough, or
+     * checks again when it will have been.
+     */
+    private void expire(final Path bag) {
+        final Pending current = pending.get(bag);
+        if (current == null) {
+            return;
+        }
+        final long quietUntil = current.lastEvent + quietMillis;
+        final long now = System.currentTimeMillis();
+        if (quietUntil > now) {
+            schedule(bag, quietUntil - now);
+        } else if (pending.remove(bag, current)) {
+            logger.debug("Coalesced {} events for {} into {}",
+                    current.events, bag, current.kind);
+            dispatch(bag, current.kind, current.firstEvent);
+        } else {
+            // changed since we looked
+            schedule(bag, quietMillis);
+        }
+    }
+
+    private void dispatch(final Path bag, final Kind kind,
+            final long firstEvent) {
+        if (kind == Kind.NONE) {
+            return;
+        }
+        try {
+            handler.handle(bag, kind, firstEvent);
+        } catch (final RuntimeException e) {
+            logger.warn("Could not handle " + kind + " event for " + bag, e);
+        }
+    }
+
+    private static final class Pending {
+
+        final Kind kind;
+
+        final long firstEvent;
+
+        final long lastEvent;
+
+        final int events;
+
+        Pending(final Kind kind, final long firstEvent, final long lastEvent,
+                final int events) {
+            this.kind = kind;
+            this.firstEvent = firstEvent;
+            this.lastEvent = lastEvent;
+            this.events = events;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static java.nio.file.attribute.PosixFilePermission.GROUP_READ;
+import static java.nio.file.attribute.PosixFilePermission.OTHERS_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+
+/**
+ * Everything the read path needs to know about a file, taken from a single
+ * attribute read (of the unix view where there is one, else of the POSIX or
+ * basic attributes) and then passed along instead of re-queried with
+ * exists(), canRead(), isFile(), lastModified() and friends.
+ */
+public final class FileAttributes {
+
+    private static final Logger logger = getLogger(FileAttributes.class);
+
+    /**
+     * The unix view gives the owner's uid and gid in the same read, which
+     * lets the {@link OwnerCache} key principal names by uid and
+     * {@link #isReadable(Path, int, int, int)} pick the bit that applies.
+     */
+    private static final String UNIX_ATTRIBUTES =
+            "unix:uid,gid,mode,size,lastModifiedTime,isRegularFile," +
+                    "isDirectory";
+
+    private static final int OWNER_READ_BIT = 0400;
+
+    private static final int GROUP_READ_BIT = 0040;
+
+    private static final int OTHERS_READ_BIT = 0004;
+
+    /**
+     * The uid this process runs as, or -1 if it cannot be determined.
+     */
+    private static final long PROCESS_UID;
+
+    /**
+     * The primary and supplementary gids of this process, sorted; empty if
+     * they cannot be determined.
+     */
+    private static final long[] PROCESS_GIDS;
+
+    /**
+     * Both the unix attribute view and the ids of this process come from
+     * JDK internals (sun.nio.fs and com.sun.security.auth.module), so they
+     * are probed together, once: without either, the POSIX attributes are
+     * read instead.
+     */
+    private static volatile boolean unixSupported;
+
+    static {
+        long uid = -1;
+        long[] gids = new long[0];
+        boolean unix = false;
+        try {
+            final com.sun.security.auth.module.UnixSystem system =
+                    new com.sun.security.auth.module.UnixSystem();
+            final long[] groups = system.getGroups();
+            gids = new long[groups == null ? 1 : groups.length + 1];
+            gids[0] = system.getGid();
+            if (groups != null) {
+                System.arraycopy(groups, 0, gids, 1, groups.length);
+            }
+            Arrays.sort(gids);
+            uid = system.getUid();
+            Files.readAttributes(Paths.get("").toAbsolutePath(),
+                    UNIX_ATTRIBUTES);
+            unix = true;
+        } catch (final LinkageError | RuntimeException | IOException e) {
+            // UnixSystem may be missing, or throw on a JDK other than
+            // OpenJDK's; the unix view may not be offered at all
+            logger.info("Unix file attributes are not available ({}), " +
+                    "falling back to POSIX attributes", e.toString());
+        }
+        PROCESS_UID = uid;
+        PROCESS_GIDS = gids;
+        unixSupported = unix;
+    }
+
+    private static volatile boolean posixSupported = true;
+
+    private final boolean regularFile;
+
+    private final boolean directory;
+
+    private final boolean readable;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final Path path;
+
+    private final int uid;
+
+    /**
+     * Kept to resolve the owner on demand: resolving a uid to a principal is
+     * a lookup of its own, which the child filter never needs.
+     */
+    private final PosixFileAttributes posix;
+
+    FileAttributes(final Path path, final int uid, final boolean regularFile,
+            final boolean directory, final boolean readable, final long size,
+            final long lastModified, final PosixFileAttributes posix) {
+        this.path = path;
+        this.uid = uid;
+        this.regularFile = regularFile;
+        this.directory = directory;
+        this.readable = readable;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.posix = posix;
+    }
+
+    /**
+     * @param path a file
+     * @return its attributes, or null if it does not exist or cannot be
+     *         stat'ed (e.g. a broken symlink, see MODE-1768)
+     */
+    public static FileAttributes read(final Path path) {
+        IoStatistics.stat();
+        try {
+            if (unixSupported) {
+                try {
+                    final Map<String, Object> attrs =
+                            Files.readAttributes(path, UNIX_ATTRIBUTES);
+                    final int uid = (Integer) attrs.get("uid");
+                    return new FileAttributes(path, uid, (Boolean) attrs
+                            .get("isRegularFile"), (Boolean) attrs
+                            .get("isDirectory"), isReadable(path, uid,
+                            (Integer) attrs.get("gid"), (Integer) attrs
+                                    .get("mode")), (Long) attrs
+                            .get("size"), ((FileTime) attrs
+                            .get("lastModifiedTime")).toMillis(), null);
+                } catch (final UnsupportedOperationException
+                        | IllegalArgumentException e) {
+                    logger.info("Unix file attributes are not supported, " +
+                            "falling back to POSIX attributes");
+                    unixSupported = false;
+                }
+            }
+            if (posixSupported) {
+                try {
+                    final PosixFileAttributes attrs =
+                            Files.readAttributes(path,
+                                    PosixFileAttributes.class);
+                    return new FileAttributes(path, -1, attrs.isRegularFile(),
+                            attrs.isDirectory(), isReadable(path, -1, -1,
+                                    readBits(attrs.permissions())), attrs
+                                    .size(), attrs
+                                    .lastModifiedTime().toMillis(), attrs);
+                } catch (final UnsupportedOperationException e) {
+                    logger.info("POSIX file attributes are not supported, " +
+                            "falling back to basic attributes");
+                    posixSupported = false;
+                }
+            }
+            final BasicFileAttributes attrs =
+                    Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileAttributes(path, -1, attrs.isRegularFile(), attrs
+                    .isDirectory(), true, attrs.size(), attrs
+                    .lastModifiedTime().toMillis(), null);
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Answers canRead() from the read bit that applies to this process,
+     * without an access() call of its own: the owner bit if we own the file,
+     * else the group bit if the file's group is one of ours, else the others
+     * bit. Only when the owner is unknown (no unix view) and the bits differ
+     * is the filesystem asked. ACLs are not consulted.
+     *
+     * @param uid the owner of the file, or -1 if unknown
+     * @param gid the group of the file, or -1 if unknown
+     * @param mode the permission bits of the file
+     */
+    static boolean isReadable(final Path path, final int uid, final int gid,
+            final int mode) {
+        if (PROCESS_UID == 0) {
+            return true;
+        }
+        final boolean owner = (mode & OWNER_READ_BIT) != 0;
+        final boolean group = (mode & GROUP_READ_BIT) != 0;
+        final boolean others = (mode & OTHERS_READ_BIT) != 0;
+        if (uid >= 0 && PROCESS_UID >= 0) {
+            if (uid == PROCESS_UID) {
+                return owner;
+            }
+            if (group == others) {
+                return group;
+            }
+            if (gid >= 0 && PROCESS_GIDS.length > 0) {
+                return Arrays.binarySearch(PROCESS_GIDS, gid) >= 0 ? group
+                        : others;
+            }
+        } else if (owner == group && group == others) {
+            return owner;
+        }
+        return Files.isReadable(path);
+    }
+
+    private static int readBits(final Set<PosixFilePermission> perms) {
+        return (perms.contains(OWNER_READ) ? OWNER_READ_BIT : 0) |
+                (perms.contains(GROUP_READ) ? GROUP_READ_BIT : 0) |
+                (perms.contains(OTHERS_READ) ? OTHERS_READ_BIT : 0);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public boolean isRegularFile() {
+        return regularFile;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public boolean isReadable() {
+        return readable;
+    }
+
+    /**
+     * @return true if this is a readable file or directory, i.e. something
+     *         that can be shown as a node
+     */
+    public boolean isAccessible() {
+        return readable && (regularFile || directory);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the uid of the owner, or -1 if the filesystem does not expose
+     *         it
+     */
+    public int uid() {
+        return uid;
+    }
+
+    /**
+     * Resolves the owner of the file. This is a lookup of its own (of the
+     * user database, or of the file without POSIX attributes).
+     *
+     * @return the owner, or null if it cannot be determined
+     */
+    public UserPrincipal owner() {
+        IoStatistics.ownerLookup();
+        if (posix != null) {
+            return posix.owner();
+        }
+        try {
+            return Files.getOwner(path);
+        } catch (final IOException e) {
+            logger.debug("Could not read the owner of " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the stamp of the file as of these attributes
+     */
+    public FileStamp stamp() {
+        return new FileStamp(lastModified, size);
+    }
+}
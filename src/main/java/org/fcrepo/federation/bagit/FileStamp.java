@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The modification time and size of a file at the moment it was looked at,
+ * read with a single stat. Used to decide whether something derived from the
+ * file is still current.
+ */
+public final class FileStamp {
+
+    /**
+     * The stamp of a file that does not exist (or cannot be stat'ed).
+     */
+    public static final FileStamp MISSING = new FileStamp(-1L, -1L);
+
+    private final long lastModified;
+
+    private final long size;
+
+    public FileStamp(final long lastModified, final long size) {
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    /**
+     * @param file may be null, in which case the file is considered missing
+     * @return the current stamp of the file
+     */
+    public static FileStamp of(final File file) {
+        if (file == null) {
+            return MISSING;
+        }
+        IoStatistics.stat();
+        try {
+            final BasicFileAttributes attrs =
+                    Files.readAttributes(file.toPath(),
+                            BasicFileAttributes.class);
+            return new FileStamp(attrs.lastModifiedTime().toMillis(), attrs
+                    .size());
+        } catch (final IOException e) {
+            return MISSING;
+        }
+    }
+
+    public long lastModified() {
+        return lastModified;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean exists() {
+        return this != MISSING && lastModified >= 0;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof FileStamp)) {
+            return false;
+        }
+        final FileStamp that = (FileStamp) o;
+        return lastModified == that.lastModified && size == that.size;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (lastModified ^ (lastModified >>> 32)) * 31 +
+                (int) (size ^ (size >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return "FileStamp(" + lastModified + ", " + size + ")";
+    }
+}
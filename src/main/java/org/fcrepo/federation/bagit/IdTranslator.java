@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.io.File;
+
+/**
+ * Translates between node ids and file paths in a single pass over the
+ * characters, without regular expressions. The layout is
+ *
+ * <pre>
+ * /                              &lt;=&gt; {root}
+ * /{bag}                         &lt;=&gt; {root}/{bag}
+ * /{bag}/{path...}[/jcr:content] &lt;=&gt; {root}/{bag}/data/{path...}
+ * </pre>
+ *
+ * to any depth below data/. Names are carried over as they are, so escapable
+ * and percent-encoded file names survive the round trip.
+ */
+public final class IdTranslator {
+
+    static final char DELIMITER = '/';
+
+    static final String DATA = "data";
+
+    static final String CONTENT_SUFFIX = "/jcr:content";
+
+    private final String rootPath;
+
+    /**
+     * The root path without trailing separators; empty for a filesystem
+     * root.
+     */
+    private final String rootPrefix;
+
+    private final int prefixLength;
+
+    private final char separator;
+
+    /**
+     * @param root the directory containing the bags
+     */
+    public IdTranslator(final File root) {
+        this(root.getAbsolutePath(), File.separatorChar);
+    }
+
+    IdTranslator(final String rootPath, final char separator) {
+        int length = rootPath.length();
+        while (length > 0 && rootPath.charAt(length - 1) == separator) {
+            length--;
+        }
+        this.rootPrefix = rootPath.substring(0, length);
+        this.prefixLength = length;
+        this.rootPath = length == 0 ? String.valueOf(separator) : rootPrefix;
+        this.separator = separator;
+    }
+
+    /**
+     * @return the absolute path of the directory containing the bags
+     */
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    /**
+     * @param id a node id, starting with '/'
+     * @return the absolute path of the file backing the node
+     */
+    public String pathFor(final String id) {
+        int end = id.length();
+        while (end > 1 && id.charAt(end - 1) == DELIMITER) {
+            end--;
+        }
+        final int suffixStart = end - CONTENT_SUFFIX.length();
+        if (suffixStart >= 0 &&
+                id.regionMatches(suffixStart, CONTENT_SUFFIX, 0,
+                        CONTENT_SUFFIX.length())) {
+            end = suffixStart;
+        }
+        if (end <= 1) {
+            return rootPath;
+        }
+        int bagEnd = id.indexOf(DELIMITER, 1);
+        if (bagEnd < 0 || bagEnd > end) {
+            bagEnd = end;
+        }
+        final boolean inData = bagEnd < end;
+        final StringBuilder path =
+                new StringBuilder(prefixLength + end +
+                        (inData ? DATA.length() + 1 : 0));
+        path.append(rootPrefix);
+        appendTranslated(path, id, 0, bagEnd, separator);
+        if (inData) {
+            path.append(separator).append(DATA);
+            appendTranslated(path, id, bagEnd, end, separator);
+        }
+        return path.toString();
+    }
+
+    /**
+     * @param id a node id, starting with '/'
+     * @return the file backing the node
+     */
+    public File fileFor(final String id) {
+        return new File(pathFor(id));
+    }
+
+    /**
+     * @param path an absolute file path
+     * @return the node id for the file, or null if the path is not within the
+     *         root directory
+     */
+    public String idFor(final String path) {
+        if (!path.startsWith(rootPrefix)) {
+            return null;
+        }
+        final int start = prefixLength;
+        int end = path.length();
+        while (end > start && path.charAt(end - 1) == separator) {
+            end--;
+        }
+        if (end == start) {
+            return String.valueOf(DELIMITER);
+        }
+        if (path.charAt(start) != separator) {
+            return null; // a sibling such as {root}2
+        }
+        final int bagEnd = path.indexOf(separator, start + 1);
+        if (bagEnd < 0 || bagEnd >= end) {
+            return translated(path, start, end);
+        }
+        final int dataStart = bagEnd + 1;
+        int dataEnd = path.indexOf(separator, dataStart);
+        if (dataEnd < 0 || dataEnd > end) {
+            dataEnd = end;
+        }
+        if (dataEnd - dataStart != DATA.length() ||
+                !path.regionMatches(dataStart, DATA, 0, DATA.length())) {
+            // a tag file or directory beside data/
+            return translated(path, start, end);
+        }
+        // drop the data segment: {root}/{bag}/data/x => /{bag}/x
+        final StringBuilder id =
+                new StringBuilder(end - start - DATA.length() - 1);
+        appendTranslated(id, path, start, bagEnd, DELIMITER);
+        appendTranslated(id, path, dataEnd, end, DELIMITER);
+        return id.toString();
+    }
+
+    /**
+     * @param file a file
+     * @return the node id for the file, or null if it is not within the root
+     *         directory
+     */
+    public String idFor(final File file) {
+        return idFor(file.getAbsolutePath());
+    }
+
+    private String translated(final String path, final int start,
+            final int end) {
+        if (separator == DELIMITER) {
+            return path.substring(start, end);
+        }
+        final StringBuilder id = new StringBuilder(end - start);
+        appendTranslated(id, path, start, end, DELIMITER);
+        return id.toString();
+    }
+
+    /**
+     * Appends src[start, end) to dest, turning whichever of '/' and the
+     * file separator is not the target into the target delimiter.
+     */
+    private void appendTranslated(final StringBuilder dest, final String src,
+            final int start, final int end, final char to) {
+        if (separator == DELIMITER) {
+            dest.append(src, start, end);
+            return;
+        }
+        final char from = to == DELIMITER ? separator : DELIMITER;
+        for (int i = start; i < end; i++) {
+            final char c = src.charAt(i);
+            dest.append(c == from ? to : c);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counts of the filesystem calls made on the document read
+ * path, so that the cost of a document (stats per document built) can be
+ * watched in the logs, e.g. on NFS where each call is a round trip.
+ */
+public final class IoStatistics {
+
+    private static final AtomicLong stats = new AtomicLong();
+
+    private static final AtomicLong directoryReads = new AtomicLong();
+
+    private static final AtomicLong ownerLookups = new AtomicLong();
+
+    private static final AtomicLong documentsBuilt = new AtomicLong();
+
+    private IoStatistics() {
+    }
+
+    /**
+     * Counts one stat-type call (attribute read, existence check, etc.).
+     */
+    static void stat() {
+        stats.incrementAndGet();
+    }
+
+    /**
+     * Counts one directory stream or listing opened.
+     */
+    static void directoryRead() {
+        directoryReads.incrementAndGet();
+    }
+
+    /**
+     * Counts one resolution of a file owner to a principal name.
+     */
+    static void ownerLookup() {
+        ownerLookups.incrementAndGet();
+    }
+
+    /**
+     * Counts one document built (not served from a cache).
+     */
+    static void documentBuilt() {
+        documentsBuilt.incrementAndGet();
+    }
+
+    public static long getStats() {
+        return stats.get();
+    }
+
+    public static long getDirectoryReads() {
+        return directoryReads.get();
+    }
+
+    public static long getOwnerLookups() {
+        return ownerLookups.get();
+    }
+
+    public static long getDocumentsBuilt() {
+        return documentsBuilt.get();
+    }
+
+    /**
+     * @return the mean number of stat-type calls per document built
+     */
+    public static double getStatsPerDocument() {
+        final long documents = documentsBuilt.get();
+        return documents == 0 ? 0.0 : (double) stats.get() / documents;
+    }
+
+    static void reset() {
+        stats.set(0);
+        directoryReads.set(0);
+        ownerLookups.set(0);
+        documentsBuilt.set(0);
+    }
+
+    public static String summary() {
+        return String.format(
+                "%d documents built, %d stats (%.2f per document), "
+                        + "%d directory reads, %d owner lookups",
+                getDocumentsBuilt(), getStats(), getStatsPerDocument(),
+                getDirectoryReads(), getOwnerLookups());
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.io.File;
+
+/**
+ * A payload or tag manifest of a bag, with the checksum algorithm it records.
+ */
+public final class ManifestFile {
+
+    private final File file;
+
+    private final String algorithm;
+
+    private final boolean tagManifest;
+
+    public ManifestFile(final File file, final String algorithm,
+            final boolean tagManifest) {
+        this.file = file;
+        this.algorithm = algorithm;
+        this.tagManifest = tagManifest;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the algorithm as named in the manifest file name, e.g. "md5"
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean isTagManifest() {
+        return tagManifest;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+}
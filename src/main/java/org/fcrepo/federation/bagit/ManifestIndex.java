@@ -0,0 +1,397 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+
+/**
+ * Finds the digest recorded for one payload path in a manifest without
+ * reading the manifest through. A sidecar file holds the 64-bit hash of
+ * each path, sorted, with the offset and length of its line. The sidecar is
+ * memory-mapped, so a lookup is a binary search of the sidecar, a
+ * positional read of one line of the manifest and its parse, and takes
+ * almost no heap. The manifest itself is not mapped: bag tools rewrite
+ * manifests in place, and touching a mapped page past the new end of the
+ * file raises an error rather than an IOException. The sidecar records the
+ * stamp of the manifest it was built from and is rebuilt when the manifest
+ * changes.
+ */
+public final class ManifestIndex {
+
+    private static final Logger logger = getLogger(ManifestIndex.class);
+
+    private static final int MAGIC = 0x4D494458;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 28;
+
+    private static final int RECORD_SIZE = 16;
+
+    /**
+     * The low bits of a record's second long hold the line length, the rest
+     * its offset.
+     */
+    private static final int LENGTH_BITS = 24;
+
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The buffer each thread reads lines into, grown to the longest line it
+     * has read.
+     */
+    private static final ThreadLocal<ByteBuffer> lineBuffers =
+            new ThreadLocal<ByteBuffer>() {
+
+                @Override
+                protected ByteBuffer initialValue() {
+                    return ByteBuffer.allocate(512);
+                }
+            };
+
+    private final Path manifest;
+
+    private final String algorithm;
+
+    private final FileStamp stamp;
+
+    private final ByteBuffer records;
+
+    private final int count;
+
+    private ManifestIndex(final Path manifest, final String algorithm,
+            final FileStamp stamp, final ByteBuffer records, final int count) {
+        this.manifest = manifest;
+        this.algorithm = algorithm;
+        this.stamp = stamp;
+        this.records = records;
+        this.count = count;
+    }
+
+    /**
+     * Opens the index of a manifest, building its sidecar first if there is
+     * none or it is out of date.
+     *
+     * @param manifest the manifest file
+     * @param algorithm its checksum algorithm
+     * @param sidecar where the index is kept
+     * @return the index
+     * @throws IOException if the manifest cannot be read or the sidecar
+     *         cannot be written
+     */
+    public static ManifestIndex open(final Path manifest,
+            final String algorithm, final Path sidecar) throws IOException {
+        final FileStamp stamp = FileStamp.of(manifest.toFile());
+        if (!stamp.exists()) {
+            throw new NoSuchFileException(manifest.toString());
+        }
+        ByteBuffer records = mapCurrent(sidecar, stamp);
+        if (records == null) {
+            build(manifest, algorithm, sidecar, stamp);
+            records = mapCurrent(sidecar, stamp);
+            if (records == null) {
+                throw new IOException("Could not index manifest " + manifest);
+            }
+        }
+        return new ManifestIndex(manifest, algorithm, stamp, records, records
+                .getInt(HEADER_SIZE - 4));
+    }
+
+    /**
+     * @return the mapped sidecar, or null if there is none or it was not
+     *         built from the manifest as stamped
+     */
+    private static ByteBuffer mapCurrent(final Path sidecar,
+            final FileStamp stamp) throws IOException {
+        final ByteBuffer records;
+        try (final FileChannel channel = FileChannel.open(sidecar, READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            records = channel.map(READ_ONLY, 0, channel.size());
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+        if (records.getInt(0) != MAGIC || records.getInt(4) != VERSION ||
+                records.getLong(8) != stamp.lastModified() ||
+                records.getLong(16) != stamp.size() ||
+                records.capacity() != HEADER_SIZE + (long) records
+                        .getInt(HEADER_SIZE - 4) * RECORD_SIZE) {
+            return null;
+        }
+        return records;
+    }
+
+    private static void build(final Path manifest, final String algorithm,
+            final Path sidecar, final FileStamp stamp) throws IOException {
+        final long start = System.currentTimeMillis();
+        final Records found = new Records();
+        ManifestReader.read(manifest, algorithm, new ManifestReader.Handler() {
+
+            @Override
+            public boolean entry(final ManifestReader.Entry entry) {
+                if (entry.getLength() > LENGTH_MASK) {
+                    logger.warn("Not indexing a line of {} bytes in {}",
+                            entry.getLength(), manifest);
+                } else {
+                    found.add(hash(entry.getPath()), entry.getOffset() <<
+                            LENGTH_BITS | entry.getLength());
+                }
+                return true;
+            }
+        });
+        found.sort();
+        // written aside and moved into place, so a reader never maps half
+        // a sidecar
+        final Path temp =
+                Files.createTempFile(sidecar.getParent(), sidecar
+                        .getFileName().toString(), ".tmp");
+        try {
+            try (final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(Files
+                            .newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(stamp.lastModified());
+                out.writeLong(stamp.size());
+                out.writeInt(found.size);
+                for (int i = 0; i < found.size; i++) {
+                    out.writeLong(found.hashes[i]);
+                    out.writeLong(found.values[i]);
+                }
+            }
+            try {
+                Files.move(temp, sidecar, REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, sidecar, REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        logger.debug("Indexed {} entries of {} in {} ms", found.size,
+                manifest, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @param path a payload path as written in the manifest, e.g.
+     *        data/dir/file.txt
+     * @return the digest recorded for it, or null if it is not listed
+     * @throws IOException if the manifest cannot be read
+     */
+    public String digestOf(final CharSequence path) throws IOException {
+        final long hash = hash(path);
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (hashAt(middle) < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        if (low == count || hashAt(low) != hash) {
+            return null;
+        }
+        final ManifestReader reader = ManifestReader.lineReader(algorithm);
+        try (final FileChannel channel = FileChannel.open(manifest, READ)) {
+            for (int i = low; i < count && hashAt(i) == hash; i++) {
+                final long value =
+                        records.getLong(HEADER_SIZE + i * RECORD_SIZE + 8);
+                final long offset = value >>> LENGTH_BITS;
+                final ByteBuffer line =
+                        readLine(channel, offset, (int) (value & LENGTH_MASK));
+                // the line is parsed and its path compared, so a manifest
+                // changed since it was indexed yields no wrong digest
+                final ManifestReader.Entry entry =
+                        reader.parseLine(line.array(), line.position(),
+                                offset);
+                if (entry != null && contentEquals(entry.getPath(), path)) {
+                    return entry.getDigest().toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a line of the manifest into the buffer of this thread.
+     *
+     * @return the buffer, positioned after the bytes read; fewer than asked
+     *         for if the manifest has been truncated since it was indexed
+     */
+    private static ByteBuffer readLine(final FileChannel channel,
+            final long offset, final int length) throws IOException {
+        ByteBuffer line = lineBuffers.get();
+        if (line.capacity() < length) {
+            line = ByteBuffer.allocate(length);
+            lineBuffers.set(line);
+        }
+        line.clear().limit(length);
+        while (line.hasRemaining() &&
+                channel.read(line, offset + line.position()) >= 0) {
+            // a positional read may return fewer bytes than asked for
+        }
+        return line;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the stamp of the manifest this index was built from
+     */
+    public FileStamp getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return the number of entries indexed
+     */
+    public int size() {
+        return count;
+    }
+
+    private long hashAt(final int i) {
+        return records.getLong(HEADER_SIZE + i * RECORD_SIZE);
+    }
+
+    /**
+     * FNV-1a over the characters of a path.
+     */
+    static long hash(final CharSequence path) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            hash ^= c & 0xff;
+            hash *= FNV_PRIME;
+            hash ^= c >>> 8;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static boolean contentEquals(final CharSequence a,
+            final CharSequence b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The (hash, offset and length) records of a manifest being indexed, in
+     * two growing arrays sorted together by hash.
+     */
+    private static final class Records {
+
+        long[] hashes = new long[1024];
+
+        long[] values = new long[1024];
+
+        int size;
+
+        void add(final long hash, final long value) {
+            if (size == hashes.length) {
+                final int capacity = size * 2;
+                final long[] newHashes = new long[capacity];
+                final long[] newValues = new long[capacity];
+                System.arraycopy(hashes, 0, newHashes, 0, size);
+                System.arraycopy(values, 0, newValues, 0, size);
+                hashes = newHashes;
+                values = newValues;
+            }
+            hashes[size] = hash;
+            values[size] = value;
+            size++;
+        }
+
+        void sort() {
+            sort(0, size - 1);
+        }
+
+        private void sort(final int from, final int to) {
+            int low = from;
+            int high = to;
+            while (high - low > 16) {
+                final long pivot = hashes[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (hashes[i] < pivot) {
+                        i++;
+                    }
+                    while (hashes[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // recurse into the smaller part, loop on the larger
+                if (j - low < high - i) {
+                    sort(low, j);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j;
+                }
+            }
+            for (int i = low + 1; i <= high; i++) {
+                for (int j = i; j > low && hashes[j - 1] > hashes[j]; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            final long hash = hashes[i];
+            hashes[i] = hashes[j];
+            hashes[j] = hash;
+            final long value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+}
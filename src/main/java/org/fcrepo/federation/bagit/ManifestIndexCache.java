@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * The open {@link ManifestIndex}es of the most recently used manifests. An
+ * index whose manifest has changed since it was opened is reopened, which
+ * rebuilds its sidecar. Sidecars are kept in a directory of their own, named
+ * after a hash of the manifest's absolute path.
+ */
+public class ManifestIndexCache {
+
+    private final Path directory;
+
+    private final Map<Path, ManifestIndex> indexes;
+
+    /**
+     * @param directory where sidecars are kept
+     * @param maxIndexes the number of indexes kept open
+     */
+    public ManifestIndexCache(final Path directory, final int maxIndexes) {
+        this.directory = directory;
+        this.indexes =
+                new LinkedHashMap<Path, ManifestIndex>(16, 0.75f, true) {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<Path, ManifestIndex> eldest) {
+                        return size() > maxIndexes;
+                    }
+                };
+    }
+
+    /**
+     * @param manifest a manifest file
+     * @param algorithm its checksum algorithm
+     * @return the current index of the manifest
+     * @throws IOException if it cannot be indexed
+     */
+    public ManifestIndex get(final Path manifest, final String algorithm)
+        throws IOException {
+        final Path key = manifest.toAbsolutePath();
+        final FileStamp stamp = FileStamp.of(key.toFile());
+        synchronized (indexes) {
+            final ManifestIndex index = indexes.get(key);
+            if (index != null && index.getStamp().equals(stamp)) {
+                return index;
+            }
+        }
+        // opened outside the lock: a rebuild may take a while, and lookups
+        // in other manifests should not wait on it
+        final ManifestIndex index =
+                ManifestIndex.open(key, algorithm, sidecarFor(key));
+        synchronized (indexes) {
+            indexes.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param manifest the absolute path of a manifest
+     * @return the path of its sidecar
+     */
+    Path sidecarFor(final Path manifest) {
+        return directory.resolve(Hashing.murmur3_128().hashString(
+                manifest.toString(), UTF_8) +
+                ".idx");
+    }
+
+    int size() {
+        synchronized (indexes) {
+            return indexes.size();
+        }
+    }
+}
@@ -19,26 +19,58 @@ package org.fcrepo.federation.bagit;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.CREATED;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.MODIFIED;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.NONE;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.REFRESHED;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.REMOVED;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 
 /**
  * This class monitors a folder containing one or more BagIt folders. It will
  * fire node events via the BagItConnector whenever a manifest is detected or
- * when it or the surrounding BagIt folder are removed.
+ * when it or the surrounding BagIt folder are removed. Changes are found with
+ * the filesystem's watch service or, in poll mode, by a
+ * {@link PollingScanner}.
  * 
  * @author Gregory Jansen, Esme Cowles
  */
@@ -46,12 +78,119 @@ public class ManifestMonitor implements Runnable {
 
     private final BagItConnector connector;
 
-    private WatchService watchService;
+    /**
+     * How long shutdown waits for queued bag events to be handled.
+     */
+    private static final long DRAIN_SECONDS = 5;
+
+    /**
+     * Null in poll mode.
+     */
+    private final WatchService watchService;
+
+    /**
+     * Null in watch mode.
+     */
+    private final PollingScanner scanner;
+
+    /**
+     * Wakes the polling thread at shutdown.
+     */
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
-    private Path bagItDir = null;
+    private final Path bagItDir;
+
+    /**
+     * The directories watched, by key.
+     */
+    private final ConcurrentMap<WatchKey, Path> keys =
+            new ConcurrentHashMap<WatchKey, Path>();
 
     private volatile boolean shutdown;
 
+    /**
+     * The number of bags watched and checked by one startup task.
+     */
+    private static final int STARTUP_BATCH = 256;
+
+    /**
+     * How many bags pass between progress reports at startup.
+     */
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private static final ForkJoinWorkerThreadFactory STARTUP_THREADS =
+            new ForkJoinWorkerThreadFactory() {
+
+                @Override
+                public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                    final ForkJoinWorkerThread thread =
+                            ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                                    .newThread(pool);
+                    thread.setName("bagit-startup-" + thread.getPoolIndex());
+                    return thread;
+                }
+            };
+
+    private volatile ForkJoinPool startupPool;
+
+    private final AtomicInteger started = new AtomicInteger();
+
+    private final AtomicInteger announced = new AtomicInteger();
+
+    /**
+     * The directories whose reconciliation is queued.
+     */
+    private final Set<Path> reconciling = Collections
+            .newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    private final AtomicLong reconciliations = new AtomicLong();
+
+    /**
+     * What has changed in each bag with a pending modification, beyond its
+     * bag metadata.
+     */
+    private final ConcurrentMap<Path, BagChanges> bagChanges =
+            new ConcurrentHashMap<Path, BagChanges>();
+
+    /**
+     * The number of payload changes held for one bag, beyond which the bag
+     * is reported modified as a whole.
+     */
+    private static final int MAX_PAYLOAD_CHANGES = 10000;
+
+    /**
+     * Accepts the subdirectories of a payload directory, not following
+     * links.
+     */
+    private static final DirectoryStream.Filter<Path> DIRECTORIES =
+            new DirectoryStream.Filter<Path>() {
+
+                @Override
+                public boolean accept(final Path entry) {
+                    return Files.isDirectory(entry, NOFOLLOW_LINKS);
+                }
+            };
+
+    private final EventCoalescer coalescer;
+
+    /**
+     * The last known state of the bags, kept current as bag events are
+     * handled; null if it is not kept.
+     */
+    private final BagStateIndex index;
+
+    /**
+     * Handles the net events off the watching thread: in parallel across
+     * bags, in order for any one bag.
+     */
+    private final StripedExecutor handlers;
+
+    private final AtomicLong handled = new AtomicLong();
+
+    private final AtomicLong totalLagMillis = new AtomicLong();
+
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
     private static final Logger logger = getLogger(ManifestMonitor.class);
 
     public ManifestMonitor(final BagItConnector connector) throws IOException {
@@ -60,6 +199,81 @@ public class ManifestMonitor implements Runnable {
                 connector.getBagItDirectory());
         this.connector = connector;
         this.shutdown = false;
+        this.bagItDir = Paths.get(connector.getBagItDirectory().toURI());
+        this.index = connector.getBagStateIndex();
+        if (connector.isPolling()) {
+            this.watchService = null;
+            this.scanner =
+                    new PollingScanner(bagItDir, connector.getPollThreads(),
+                            connector.isWatchingPayload());
+        } else {
+            this.watchService = FileSystems.getDefault().newWatchService();
+            this.scanner = null;
+        }
+        this.handlers =
+                new StripedExecutor(connector.getEventThreads(),
+                        "bagit-events-%d");
+        this.coalescer =
+                new EventCoalescer(new EventCoalescer.Handler() {
+
+                    @Override
+                    public void handle(final Path bag,
+                            final EventCoalescer.Kind kind,
+                            final long firstEvent) {
+                        submit(bag, kind, firstEvent);
+                    }
+                }, connector.getEventQuietMillis());
+    }
+
+    private void submit(final Path bag, final EventCoalescer.Kind kind,
+            final long firstEvent) {
+        try {
+            handlers.execute(bag, new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        dispatch(bag, kind);
+                    } catch (final RuntimeException e) {
+                        logger.warn("Could not handle " + kind +
+                                " event for bag: " + bag, e);
+                    } finally {
+                        recordLag(System.currentTimeMillis() - firstEvent);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            logger.debug("Dropping {} event for bag {}, shut down", kind, bag);
+        }
+    }
+
+    private void recordLag(final long lagMillis) {
+        handled.incrementAndGet();
+        totalLagMillis.addAndGet(lagMillis);
+        long max = maxLagMillis.get();
+        while (lagMillis > max && !maxLagMillis.compareAndSet(max, lagMillis)) {
+            max = maxLagMillis.get();
+        }
+    }
+
+    /**
+     * @return the number of net bag events handled
+     */
+    public long getHandled() {
+        return handled.get();
+    }
+
+    /**
+     * @return the mean time from the first filesystem event for a bag to
+     *         its node event being handed to the publisher, in milliseconds
+     */
+    public double getMeanLagMillis() {
+        final long count = handled.get();
+        return count == 0 ? 0.0 : (double) totalLagMillis.get() / count;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis.get();
     }
 
     /**
@@ -70,104 +284,905 @@ public class ManifestMonitor implements Runnable {
      */
     private void watchBag(Path path) {
         try {
-            path.register(watchService, ENTRY_CREATE, ENTRY_DELETE,
-                    ENTRY_MODIFY);
+            register(path);
+            if (connector.isWatchingPayload()) {
+                watchTree(path.resolve(IdTranslator.DATA));
+            }
             logger.info("started watching a bag: " + path.toAbsolutePath());
-            if (containsManifest(path)) connector.fireNewBagEvent(path);
+            coalescer.add(path, CREATED);
         } catch (IOException e) {
             logger.warn("Cannot watch bag: " + path.toAbsolutePath(), e);
         }
     }
 
-    private boolean containsManifest(Path path) {
-        for (final File bagFile : path.toFile().listFiles()) {
-            Path bagPath = Paths.get(bagFile.toURI());
-            if (ManifestUtil.isManifest(bagPath)) {
-                return true;
+    /**
+     * Starts on the bags already in the root, in parallel: the bags are
+     * split into batches, each batch is watched and checked for manifests on
+     * a worker of a fork-join pool, and the bags found with a manifest are
+     * handed to the event handlers a batch at a time.
+     */
+    private void startExistingBags() {
+        final List<String> names =
+                new ArrayList<String>(connector.getBagRegistry().names());
+        final long start = System.currentTimeMillis();
+        final ForkJoinPool pool =
+                new ForkJoinPool(Math.max(1, connector
+                        .getStartupScanThreads()), STARTUP_THREADS, null,
+                        false);
+        startupPool = pool;
+        try {
+            pool.invoke(new StartupScan(names, 0, names.size()));
+        } finally {
+            pool.shutdown();
+            startupPool = null;
+        }
+        if (index != null && !shutdown) {
+            announceRemovedWhileDown();
+            connector.saveBagState();
+        }
+        logger.info("Started on {} bags in {} ms, {} bag events",
+                names.size(), System.currentTimeMillis() - start,
+                announced.get());
+    }
+
+    /**
+     * Reports the bags that were nodes when the connector last ran and are
+     * gone from the root now.
+     */
+    private void announceRemovedWhileDown() {
+        final BagRegistry registry = connector.getBagRegistry();
+        final Map<Path, EventCoalescer.Kind> removed =
+                new LinkedHashMap<Path, EventCoalescer.Kind>();
+        for (final String name : new ArrayList<String>(index.names())) {
+            if (!registry.contains(name)) {
+                if (index.get(name).hasManifests()) {
+                    removed.put(bagItDir.resolve(name), REMOVED);
+                }
+                index.remove(name);
+            }
+        }
+        announce(removed);
+    }
+
+    /**
+     * Starts on a range of bags, splitting it until it is one batch.
+     */
+    private final class StartupScan extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> names;
+
+        private final int from;
+
+        private final int to;
+
+        StartupScan(final List<String> names, final int from, final int to) {
+            this.names = names;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > STARTUP_BATCH) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new StartupScan(names, from, middle),
+                        new StartupScan(names, middle, to));
+            } else {
+                startBatch(names.subList(from, to), names.size());
+            }
+        }
+    }
+
+    private void startBatch(final List<String> batch, final int total) {
+        final Map<Path, EventCoalescer.Kind> found =
+                new LinkedHashMap<Path, EventCoalescer.Kind>();
+        for (final String name : batch) {
+            if (shutdown) {
+                return;
+            }
+            final Path bag = bagItDir.resolve(name);
+            try {
+                register(bag);
+                if (connector.isWatchingPayload()) {
+                    watchTree(bag.resolve(IdTranslator.DATA));
+                }
+            } catch (final IOException e) {
+                logger.warn("Cannot watch bag: " + bag.toAbsolutePath(), e);
+            }
+            final EventCoalescer.Kind kind = startupEvent(bag);
+            if (kind != NONE) {
+                found.put(bag, kind);
             }
         }
-        return false;
+        announce(found);
+        final int done = started.addAndGet(batch.size());
+        if (done / PROGRESS_INTERVAL != (done - batch.size()) /
+                PROGRESS_INTERVAL) {
+            logger.info("Started on {} of {} bags", done, total);
+        }
+    }
+
+    /**
+     * Decides what a bag found at startup is to be reported as. Without a
+     * {@link BagStateIndex} every bag with a manifest is new; with one, only
+     * the bags that differ from their recorded state are reported.
+     */
+    private EventCoalescer.Kind startupEvent(final Path bag) {
+        final BagSnapshot snapshot = connector.refreshBagSnapshot(bag);
+        final boolean node = snapshot != null && snapshot.hasPayloadManifests();
+        if (index == null) {
+            return node ? CREATED : NONE;
+        }
+        final BagStateIndex.Entry before =
+                index.get(bag.getFileName().toString());
+        final boolean wasNode = before != null && before.hasManifests();
+        final BagStateIndex.Entry now = remember(bag, snapshot);
+        if (node && !wasNode) {
+            return CREATED;
+        } else if (!node && wasNode) {
+            return REMOVED;
+        } else if (node && !now.equals(before)) {
+            return MODIFIED;
+        }
+        return NONE;
+    }
+
+    /**
+     * Records the state of a bag in the index, if there is one.
+     *
+     * @param bag the bag directory
+     * @param snapshot its metadata as just read, or null if it is gone
+     * @return its state, or null
+     */
+    private BagStateIndex.Entry remember(final Path bag,
+            final BagSnapshot snapshot) {
+        if (index == null) {
+            return null;
+        }
+        final String name = bag.getFileName().toString();
+        if (snapshot == null) {
+            index.remove(name);
+            return null;
+        }
+        final BagStateIndex.Entry state = BagStateIndex.stateOf(bag, snapshot);
+        index.put(name, state);
+        return state;
+    }
+
+    /**
+     * Fires the node events for the bags found changed at startup, on the
+     * handler of each bag so that they precede its later events.
+     */
+    private void announce(final Map<Path, EventCoalescer.Kind> bags) {
+        for (final Map.Entry<Path, EventCoalescer.Kind> event : bags
+                .entrySet()) {
+            final Path bag = event.getKey();
+            final EventCoalescer.Kind kind = event.getValue();
+            try {
+                handlers.execute(bag, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        logger.debug("send {} node event for bag: {}", kind,
+                                bag);
+                        if (kind == CREATED) {
+                            connector.fireNewBagEvent(bag);
+                        } else if (kind == MODIFIED) {
+                            connector.fireModifiedBagEvent(bag);
+                        } else {
+                            connector.fireRemoveBagEvent(bag);
+                        }
+                    }
+                });
+                announced.incrementAndGet();
+            } catch (final RejectedExecutionException e) {
+                logger.debug("Dropping new bag event for {}, shut down", bag);
+            }
+        }
+    }
+
+    /**
+     * Watches a payload directory and every directory below it. Only
+     * directories are descended into, and nothing is done per file beyond
+     * the type check of the listing. A directory is registered before
+     * it is listed, so a subdirectory created while we list is either listed
+     * or reported by the new key; the caller drops the cached documents of
+     * the whole tree afterwards, for entries that predate the keys (e.g. a
+     * subtree moved in, or copied faster than we register).
+     * 
+     * @param dir the directory
+     */
+    private void watchTree(final Path dir) {
+        if (watchService == null || !Files.isDirectory(dir, NOFOLLOW_LINKS)) {
+            return;
+        }
+        final Deque<Path> pending = new ArrayDeque<Path>();
+        pending.push(dir);
+        while (!pending.isEmpty()) {
+            final Path next = pending.pop();
+            try {
+                register(next);
+            } catch (final NoSuchFileException e) {
+                // gone again; its own events will tell
+                continue;
+            } catch (final IOException e) {
+                // e.g. out of inotify watches
+                logger.warn("Cannot watch payload directory: " + next, e);
+                continue;
+            }
+            IoStatistics.directoryRead();
+            try (final DirectoryStream<Path> subdirs =
+                    Files.newDirectoryStream(next, DIRECTORIES)) {
+                for (final Path subdir : subdirs) {
+                    pending.push(subdir);
+                }
+            } catch (final IOException | DirectoryIteratorException e) {
+                // gone again, or unreadable; its own events will tell
+                logger.debug("Cannot list " + next, e);
+            }
+        }
+        logger.debug("Watching {} directories", keys.size());
+    }
+
+    /**
+     * Stops watching a deleted directory and everything below it.
+     */
+    private void unwatchTree(final Path dir) {
+        final Iterator<Map.Entry<WatchKey, Path>> it =
+                keys.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<WatchKey, Path> entry = it.next();
+            if (entry.getValue().startsWith(dir)) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of directories being watched, which counts against
+     *         the inotify watch limit (fs.inotify.max_user_watches) on Linux
+     */
+    public int getWatchKeyCount() {
+        return keys.size();
+    }
+
+    /**
+     * Acts on the net event for a bag once its events have settled.
+     */
+    private void dispatch(final Path bag, final EventCoalescer.Kind kind) {
+        final BagChanges changes = bagChanges.remove(bag);
+        if (changes != null) {
+            // a change recorded from now on goes into a new BagChanges,
+            // and is sent with the next event
+            changes.close();
+        }
+        switch (kind) {
+            case CREATED:
+                if (containsManifest(bag)) {
+                    logger.info("send new node event for bag: " + bag);
+                    connector.fireNewBagEvent(bag);
+                }
+                break;
+            case MODIFIED:
+                final BagStateIndex.Entry known =
+                        index == null ? null : index.get(bag.getFileName()
+                                .toString());
+                final BagSnapshot before = connector.cachedBagSnapshot(bag);
+                final BagSnapshot snapshot = connector.refreshBagSnapshot(bag);
+                remember(bag, snapshot);
+                if (snapshot == null || !snapshot.hasPayloadManifests()) {
+                    // gone, or no longer a node, though the event that said
+                    // so was missed or merged away
+                    if (wasNode(known, before)) {
+                        logger.info("send remove node event for bag: " + bag);
+                        connector.fireRemoveBagEvent(bag);
+                    }
+                    break;
+                } else if (before == null ||
+                        (changes != null && changes.isWholeBag())) {
+                    logger.info("sending modified node event for bag: " + bag);
+                    connector.fireModifiedBagEvent(bag);
+                } else {
+                    logger.info("sending changes for bag: " + bag);
+                    connector.fireBagInfoEvents(bag, before, snapshot);
+                    if (changes != null) {
+                        connector.firePayloadEvents(changes.payload());
+                    }
+                }
+                break;
+            case REMOVED:
+                remember(bag, null);
+                logger.info("send remove node event for bag: " + bag);
+                connector.fireRemoveBagEvent(bag);
+                break;
+            case REFRESHED:
+                remember(bag, connector.refreshBagSnapshot(bag));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Reads a fresh metadata snapshot of the bag into the connector and checks
+     * it for a payload manifest.
+     */
+    private boolean containsManifest(Path path) {
+        final BagSnapshot snapshot = connector.refreshBagSnapshot(path);
+        remember(path, snapshot);
+        return snapshot != null && snapshot.hasPayloadManifests();
     }
 
     @Override
     public void run() {
         logger.debug("Now executing ManifestMonitor.run()...");
-        this.bagItDir = Paths.get(connector.getBagItDirectory().toURI());
         try {
-            this.watchService = FileSystems.getDefault().newWatchService();
-            this.bagItDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY,
-                    ENTRY_DELETE);
-            for (final File file : bagItDir.toFile().listFiles()) {
-                if (file.isDirectory()) {
-                    Path path = Paths.get(file.toURI());
-                    watchBag(path);
-                }
-            }
+            register(bagItDir);
+            // the registry was loaded before the root was watched; catch up
+            // with the bags added or removed in between
+            connector.getBagRegistry().load(bagItDir);
+            startExistingBags();
+        } catch (final ClosedWatchServiceException |
+                RejectedExecutionException e) {
+            logger.debug("ManifestMonitor shut down while starting.");
+            return;
         } catch (IOException e) {
             throw new Error(
                     "Cannot set up the monitoring of a BagIt directory: " +
                             this.bagItDir, e);
         }
+        if (scanner != null) {
+            poll();
+        } else {
+            logger.info("Watching {} directories", keys.size());
+            watch();
+        }
+        logger.debug("ManifestMonitor.run() finished.");
+    }
+
+    private void watch() {
         while (!this.shutdown) {
+            final WatchKey key;
             try {
-                final WatchKey key = watchService.poll(2, SECONDS);
-                if (key != null) {
-                    final List<WatchEvent<?>> events = key.pollEvents();
-                    Path parent = (Path) key.watchable();
-                    for (final WatchEvent<?> event : events) {
-                        Path path = (Path) event.context();
-                        path = parent.resolve(path);
-                        @SuppressWarnings("unchecked")
-                        final Kind<Path> kind = (Kind<Path>) event.kind();
-                        logger.debug(
-                                "Received an event at context: {} of kind: {}",
-                                path.toAbsolutePath(), kind.name());
-                        if (this.bagItDir.equals(key.watchable())) {
-                            if (ENTRY_CREATE == kind) { // new bag
-                                watchBag(path);
-                            } else if (ENTRY_DELETE == kind) { // removed bag
-                                connector.fireRemoveBagEvent(path);
-                            } else if (ENTRY_MODIFY == kind) { // changed bag
-                                logger.info("bag entry modified, sending modified node event for bag: " +
-                                        path);
-                                connector.fireModifiedBagEvent(path);
-                            }
-                        } else if (ManifestUtil.isManifest(path)) {
-                            if (ENTRY_CREATE == kind) {
-                                logger.info("new manifest, send new node event for bag: " +
-                                        path.getParent());
-                                connector.fireNewBagEvent(path.getParent());
-                            } else if (ENTRY_DELETE == kind) {
-                                logger.info("manifest gone, send remove node event for bag: " +
-                                        path.getParent());
-                                connector.fireRemoveBagEvent(path.getParent());
-                            } else if (ENTRY_MODIFY == kind) {
-                                logger.info("manifest modified, sending modified node event for bag: " +
-                                        path.getParent());
-                                connector
-                                        .fireModifiedBagEvent(path.getParent());
-                            }
-                            // final Boolean manifest = true;
-                        } else if (ManifestUtil.isTagManifest(path)) {
-                            // final Boolean tagManifest = true;
-                        } else {
-                            logger.warn("Unrecognized event at: " +
-                                    path.toAbsolutePath());
-                        }
-                    }
-                    key.reset();
-                }
+                // blocks until there are events; shutdown() closes the
+                // watch service to wake us
+                key = watchService.take();
+            } catch (final ClosedWatchServiceException e) {
+                break;
             } catch (final InterruptedException e) {
                 logger.debug("Now ManifestMonitor.run() interrupted.");
-                this.shutdown = true;
+                break;
+            }
+            final Path parent = (Path) key.watchable();
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    logger.warn("Missed events in " + parent +
+                            ", reconciling it");
+                    scheduleReconcile(parent);
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                final Kind<Path> kind = (Kind<Path>) event.kind();
+                handleEvent(parent, parent.resolve((Path) event.context()),
+                        kind);
+            }
+            if (!key.reset() && keys.remove(key) != null) {
+                // deleted, or otherwise no longer watchable; find out which.
+                // A key we cancelled ourselves was removed already.
+                scheduleReconcile(parent);
+            }
+        }
+    }
+
+    /**
+     * Queues a reconciliation of a watched directory whose events were lost,
+     * on the handler of its bag (or of the root), unless one is queued
+     * already.
+     */
+    void scheduleReconcile(final Path dir) {
+        if (!reconciling.add(dir)) {
+            return;
+        }
+        final Path lane =
+                dir.equals(bagItDir) ? bagItDir : bagItDir.resolve(bagItDir
+                        .relativize(dir).getName(0));
+        try {
+            handlers.execute(lane, new Runnable() {
+
+                @Override
+                public void run() {
+                    reconciling.remove(dir);
+                    try {
+                        reconcile(dir);
+                    } catch (final RuntimeException e) {
+                        logger.warn("Could not reconcile " + dir, e);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            reconciling.remove(dir);
+        }
+    }
+
+    /**
+     * Compares a directory whose events were lost with what is known of it,
+     * and reports only the differences.
+     */
+    private void reconcile(final Path dir) {
+        if (shutdown) {
+            return;
+        }
+        reconciliations.incrementAndGet();
+        if (dir.equals(bagItDir)) {
+            reconcileRoot();
+            return;
+        }
+        final Path bag = bagItDir.resolve(bagItDir.relativize(dir).getName(0));
+        if (dir.equals(bag)) {
+            reconcileBag(bag);
+        } else {
+            reconcilePayload(bag, dir);
+        }
+    }
+
+    /**
+     * Compares the bags in the root with the {@link BagRegistry}; bags that
+     * appeared or disappeared are handled as if their events had come.
+     */
+    private void reconcileRoot() {
+        final Set<String> found = new HashSet<String>();
+        IoStatistics.directoryRead();
+        try (final DirectoryStream<Path> entries =
+                Files.newDirectoryStream(bagItDir,
+                        BagRegistry.BAG_DIRECTORIES)) {
+            for (final Path entry : entries) {
+                found.add(entry.getFileName().toString());
+            }
+            register(bagItDir);
+        } catch (final IOException | DirectoryIteratorException e) {
+            logger.error("Cannot reconcile the BagIt directory: " + bagItDir,
+                    e);
+            return;
+        }
+        final BagRegistry registry = connector.getBagRegistry();
+        for (final String name : found) {
+            if (!registry.contains(name)) {
+                handleEvent(bagItDir, bagItDir.resolve(name), ENTRY_CREATE);
+            }
+        }
+        for (final String name : new ArrayList<String>(registry.names())) {
+            if (!found.contains(name)) {
+                handleEvent(bagItDir, bagItDir.resolve(name), ENTRY_DELETE);
+            }
+        }
+    }
+
+    /**
+     * Compares a bag with its last known state: the {@link BagStateIndex}
+     * where there is one, else the snapshot held by the connector. A bag is
+     * reported created or removed if it gained or lost its payload
+     * manifests, modified if its metadata changed, and not at all otherwise.
+     */
+    private void reconcileBag(final Path bag) {
+        final String name = bag.getFileName().toString();
+        final boolean registered = connector.getBagRegistry().contains(name);
+        if (!BagRegistry.isBagDirectory(bag)) {
+            if (registered) {
+                handleEvent(bagItDir, bag, ENTRY_DELETE);
+            }
+            return;
+        } else if (!registered) {
+            handleEvent(bagItDir, bag, ENTRY_CREATE);
+            return;
+        }
+        try {
+            register(bag);
+        } catch (final IOException e) {
+            logger.warn("Cannot watch bag: " + bag.toAbsolutePath(), e);
+        }
+        if (connector.isWatchingPayload()) {
+            watchTree(bag.resolve(IdTranslator.DATA));
+        }
+        connector.invalidateMissing(bag);
+        final BagStateIndex.Entry known = index == null ? null : index.get(name);
+        final BagSnapshot before = connector.cachedBagSnapshot(bag);
+        final BagSnapshot after = connector.refreshBagSnapshot(bag);
+        final boolean wasNode = wasNode(known, before);
+        final boolean node = after != null && after.hasPayloadManifests();
+        if (node && !wasNode) {
+            coalescer.add(bag, CREATED);
+        } else if (!node && wasNode) {
+            coalescer.add(bag, REMOVED);
+        } else if (node) {
+            final boolean changed =
+                    known != null ? !known.equals(BagStateIndex.stateOf(bag,
+                            after)) : !sameMetadata(before, after);
+            if (changed) {
+                contentModified(bag);
+            }
+        }
+    }
+
+    /**
+     * @param known the recorded state of a bag, or null
+     * @param before the snapshot of it held by the connector, or null
+     * @return whether the bag had payload manifests, i.e. was a node
+     */
+    private static boolean wasNode(final BagStateIndex.Entry known,
+            final BagSnapshot before) {
+        return known != null ? known.hasManifests() : before != null &&
+                before.hasPayloadManifests();
+    }
+
+    private static boolean sameMetadata(final BagSnapshot before,
+            final BagSnapshot after) {
+        return before != null &&
+                before.getBagInfoStamp().equals(after.getBagInfoStamp()) &&
+                namesOf(before.getPayloadManifests()).equals(
+                        namesOf(after.getPayloadManifests())) &&
+                namesOf(before.getTagManifests()).equals(
+                        namesOf(after.getTagManifests()));
+    }
+
+    private static Set<String> namesOf(final List<ManifestFile> manifests) {
+        final Set<String> names = new HashSet<String>();
+        for (final ManifestFile manifest : manifests) {
+            names.add(manifest.getFile().getName());
+        }
+        return names;
+    }
+
+    /**
+     * Brings the watches under a payload directory up to date, drops what is
+     * cached for it, and reports the entries that differ from those last
+     * known: the children of its cached document, whose subdirectories are
+     * also checked against the watched ones. A directory that is gone is
+     * reported removed, which stands for its whole tree. Where its children
+     * are not all known (not cached, or more than a page of them), the bag
+     * is reported modified as a whole. A file rewritten in place while its
+     * events were lost is not found.
+     */
+    private void reconcilePayload(final Path bag, final Path dir) {
+        if (!connector.isWatchingPayload()) {
+            return;
+        }
+        final Set<String> known = connector.knownChildren(dir);
+        final boolean data = dir.equals(bag.resolve(IdTranslator.DATA));
+        if (!Files.isDirectory(dir, NOFOLLOW_LINKS)) {
+            unwatchTree(dir);
+            connector.invalidatePayload(dir);
+            if (data) {
+                contentModified(bag);
+            } else {
+                payloadChanged(bag, dir, REMOVED);
+            }
+            return;
+        }
+        final Set<String> watched = new HashSet<String>();
+        for (final Path watchedDir : keys.values()) {
+            if (dir.equals(watchedDir.getParent())) {
+                watched.add(watchedDir.getFileName().toString());
+            }
+        }
+        watchTree(dir);
+        final Set<String> found = new HashSet<String>();
+        IoStatistics.directoryRead();
+        try (final DirectoryStream<Path> entries =
+                Files.newDirectoryStream(dir)) {
+            for (final Path entry : entries) {
+                found.add(entry.getFileName().toString());
+            }
+        } catch (final IOException | DirectoryIteratorException e) {
+            logger.debug("Cannot list payload directory: " + dir, e);
+            connector.invalidatePayload(dir);
+            contentModified(bag);
+            return;
+        }
+        for (final String name : watched) {
+            if (!found.contains(name)) {
+                unwatchTree(dir.resolve(name));
+            }
+        }
+        connector.invalidatePayload(dir);
+        if (known == null) {
+            contentModified(bag);
+            return;
+        }
+        known.addAll(watched);
+        for (final String name : found) {
+            if (!known.contains(name)) {
+                payloadChanged(bag, dir.resolve(name), CREATED);
+            }
+        }
+        for (final String name : known) {
+            if (!found.contains(name)) {
+                payloadChanged(bag, dir.resolve(name), REMOVED);
+            }
+        }
+    }
+
+    /**
+     * @return the number of watched directories reconciled after their
+     *         events were lost
+     */
+    public long getReconciliations() {
+        return reconciliations.get();
+    }
+
+    /**
+     * Rescans the root at the configured interval and handles what changed
+     * as if a watch service had reported it. The first scan only takes the
+     * snapshot: the bags already there were announced at startup.
+     */
+    private void poll() {
+        final long interval = connector.getPollIntervalSeconds();
+        logger.info("Polling {} every {} seconds", bagItDir, interval);
+        try {
+            scanner.scan();
+            logger.info("Polling {} bags", scanner.getBagCount());
+            while (!stopped.await(interval, SECONDS)) {
+                final long start = System.currentTimeMillis();
+                final List<PollingScanner.Change> changes;
+                try {
+                    changes = scanner.scan();
+                } catch (final IOException e) {
+                    // e.g. a mount gone stale for a while; try again later
+                    logger.warn("Could not scan " + bagItDir, e);
+                    continue;
+                }
+                for (final PollingScanner.Change change : changes) {
+                    handleEvent(change.getPath().getParent(),
+                            change.getPath(), change.getKind());
+                }
+                logger.debug("Scanned {} bags in {} ms, {} changes", scanner
+                        .getBagCount(), System.currentTimeMillis() - start,
+                        changes.size());
+            }
+        } catch (final InterruptedException e) {
+            logger.debug("Now ManifestMonitor.run() interrupted.");
+        } catch (final IOException e) {
+            if (!shutdown) {
+                throw new Error("Cannot poll the BagIt directory: " +
+                        this.bagItDir, e);
+            }
+        }
+    }
+
+    /**
+     * Turns one filesystem event into a bag event.
+     * 
+     * @param parent the watched directory
+     * @param path the file the event is about
+     * @param kind what happened to it
+     */
+    private void handleEvent(final Path parent, final Path path,
+            final Kind<Path> kind) {
+        if (index != null && index.isIndexFile(path)) {
+            return;
+        }
+        logger.debug("Received an event at context: {} of kind: {}", path
+                .toAbsolutePath(), kind.name());
+        if (ENTRY_CREATE == kind) {
+            connector.invalidateMissing(path);
+        }
+        final Path relative = bagItDir.relativize(path);
+        if (relative.getNameCount() > 2 ||
+                (relative.getNameCount() == 2 && relative.getFileName()
+                        .toString().equals(IdTranslator.DATA))) {
+            handlePayloadEvent(bagItDir.resolve(relative.getName(0)), path,
+                    kind);
+        } else if (this.bagItDir.equals(parent)) {
+            if (ENTRY_CREATE == kind) { // new bag
+                if (connector.registerBag(path)) {
+                    watchBag(path);
+                }
+            } else if (ENTRY_DELETE == kind) { // removed bag
+                connector.unregisterBag(path);
+                coalescer.add(path, REMOVED);
+            } else if (ENTRY_MODIFY == kind) { // changed bag
+                logger.debug("bag entry modified: " + path);
+                contentModified(path);
+            }
+        } else if (ManifestUtil.isManifest(path)) {
+            if (ENTRY_CREATE == kind) {
+                logger.debug("new manifest in bag: " + path.getParent());
+                coalescer.add(path.getParent(), CREATED);
+            } else if (ENTRY_DELETE == kind) {
+                logger.debug("manifest gone from bag: " + path.getParent());
+                coalescer.add(path.getParent(), REMOVED);
+            } else if (ENTRY_MODIFY == kind) {
+                logger.debug("manifest modified in bag: " + path.getParent());
+                contentModified(path.getParent());
             }
+        } else if (ManifestUtil.isTagManifest(path)) {
+            coalescer.add(path.getParent(), REFRESHED);
+        } else if (ManifestUtil.isBagMetadata(path)) {
+            logger.debug("bag metadata changed in bag: " + path.getParent());
+            coalescer.add(path.getParent(), MODIFIED);
+        } else {
+            logger.warn("Unrecognized event at: " + path.toAbsolutePath());
         }
     }
 
+    /**
+     * Handles an event in the data/ tree of a bag: directories are watched
+     * as they appear, the documents for the path are dropped from the cache,
+     * and the bag is reported modified.
+     */
+    private void handlePayloadEvent(final Path bag, final Path path,
+            final Kind<Path> kind) {
+        if (!connector.isWatchingPayload()) {
+            return;
+        }
+        if (ENTRY_CREATE == kind) {
+            watchTree(path);
+        } else if (ENTRY_DELETE == kind) {
+            unwatchTree(path);
+        }
+        connector.invalidatePayload(path);
+        if (path.equals(bag.resolve(IdTranslator.DATA))) {
+            contentModified(bag);
+        } else {
+            payloadChanged(bag, path, ENTRY_CREATE == kind ? CREATED
+                    : ENTRY_DELETE == kind ? REMOVED : MODIFIED);
+        }
+    }
+
+    /**
+     * Records a change to a payload file or folder and reports its bag
+     * modified.
+     */
+    private void payloadChanged(final Path bag, final Path path,
+            final EventCoalescer.Kind change) {
+        while (!changesTo(bag).payloadChanged(path, change)) {
+            // closed by a dispatch since we looked it up
+        }
+        coalescer.add(bag, MODIFIED);
+    }
+
+    /**
+     * Reports a bag modified in a way that is sent as a change to the whole
+     * bag rather than to the payload files and bag-info.txt properties
+     * concerned.
+     */
+    private void contentModified(final Path bag) {
+        while (!changesTo(bag).wholeBag()) {
+            // closed by a dispatch since we looked it up
+        }
+        coalescer.add(bag, MODIFIED);
+    }
+
+    private BagChanges changesTo(final Path bag) {
+        BagChanges changes = bagChanges.get(bag);
+        if (changes == null) {
+            final BagChanges created = new BagChanges();
+            changes = bagChanges.putIfAbsent(bag, created);
+            if (changes == null) {
+                changes = created;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * The changes to a bag awaiting its modified event: the net change to
+     * each payload file or folder, in the order first seen, unless the bag
+     * is to be reported as a whole. Once a dispatch has taken it out of
+     * {@link #bagChanges} and closed it, it accepts no more changes, so a
+     * change is either sent by that dispatch or recorded afresh.
+     */
+    private static final class BagChanges {
+
+        private final Map<Path, EventCoalescer.Kind> payload =
+                new LinkedHashMap<Path, EventCoalescer.Kind>();
+
+        private boolean wholeBag;
+
+        private boolean closed;
+
+        /**
+         * @return false if closed, in which case nothing was recorded
+         */
+        synchronized boolean payloadChanged(final Path path,
+                final EventCoalescer.Kind kind) {
+            if (closed) {
+                return false;
+            } else if (wholeBag) {
+                return true;
+            }
+            final EventCoalescer.Kind before = payload.get(path);
+            final EventCoalescer.Kind net =
+                    before == null ? kind : before.then(kind);
+            if (net == NONE) {
+                payload.remove(path);
+            } else {
+                payload.put(path, net);
+            }
+            if (payload.size() > MAX_PAYLOAD_CHANGES) {
+                wholeBag();
+            }
+            return true;
+        }
+
+        /**
+         * @return false if closed, in which case nothing was recorded
+         */
+        synchronized boolean wholeBag() {
+            if (closed) {
+                return false;
+            }
+            wholeBag = true;
+            payload.clear();
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        synchronized boolean isWholeBag() {
+            return wholeBag;
+        }
+
+        synchronized Map<Path, EventCoalescer.Kind> payload() {
+            return new LinkedHashMap<Path, EventCoalescer.Kind>(payload);
+        }
+    }
+
+    private void register(final Path dir) throws IOException {
+        if (watchService == null) {
+            return;
+        }
+        keys.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY,
+                ENTRY_DELETE), dir);
+    }
+
+    /**
+     * Stops watching at once and hands on the events already seen: closing
+     * the watch service wakes the watching thread, pending bag events are
+     * handled without waiting for quiet (for at most a few seconds), and
+     * every watch key is cancelled.
+     */
     public void shutdown() {
         logger.debug(
                 "Shutting down ManifestMonitor on BagItConnector on directory: {}",
                 this.bagItDir);
         this.shutdown = true;
+        stopped.countDown();
+        final ForkJoinPool pool = startupPool;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (final IOException e) {
+                logger.debug("Could not close the watch service", e);
+            }
+        } else {
+            scanner.shutdown();
+        }
+        coalescer.flush();
+        coalescer.shutdown();
+        handlers.shutdown();
+        try {
+            if (!handlers.awaitTermination(DRAIN_SECONDS, SECONDS)) {
+                logger.warn("Dropped {} bag events still queued at shutdown",
+                        handlers.shutdownNow().size());
+            }
+        } catch (final InterruptedException e) {
+            handlers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        for (final WatchKey key : keys.keySet()) {
+            key.cancel();
+        }
+        keys.clear();
+        logger.info("Handled {} bag events, lag mean {} ms, max {} ms, " +
+                "{} reconciliations", handled.get(), getMeanLagMillis(),
+                maxLagMillis.get(), reconciliations.get());
     }
 }
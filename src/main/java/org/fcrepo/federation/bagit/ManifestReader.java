@@ -0,0 +1,320 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+
+/**
+ * Reads a BagIt manifest as a stream of (algorithm, digest, path) entries,
+ * in constant memory whatever its length. Lines are found in the bytes read
+ * from the file and only the path is decoded, as UTF-8, into buffers that
+ * are reused from one line to the next: the {@link Entry} handed to the
+ * {@link Handler} is the same object every time, valid only during the
+ * call.
+ * <p>
+ * Each line is a digest, one or more spaces or tabs, and a path, which runs
+ * to the end of the line and so may itself contain spaces and tabs. Line
+ * feeds, carriage returns and percent signs in a path are percent-encoded
+ * (%0A, %0D and %25), as the BagIt specification requires.
+ */
+public final class ManifestReader {
+
+    private static final Logger logger = getLogger(ManifestReader.class);
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the entries of a manifest.
+     */
+    public interface Handler {
+
+        /**
+         * @param entry the entry read; copy what is to be kept
+         * @return false to stop reading
+         */
+        boolean entry(Entry entry);
+    }
+
+    private final Entry entry;
+
+    private final CharsetDecoder decoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer bytes;
+
+    private CharBuffer chars;
+
+    /**
+     * The bytes of the line being parsed, as the decoder takes them: a
+     * wrapper of the whole array the line is in, narrowed to the path of
+     * each line in turn, and only replaced when the array is.
+     */
+    private ByteBuffer lineBytes;
+
+    private ManifestReader(final String algorithm, final int bufferSize) {
+        this.entry = new Entry(algorithm);
+        this.bytes = ByteBuffer.allocate(bufferSize);
+        this.chars = CharBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Reads every entry of a manifest.
+     *
+     * @param manifest the manifest file
+     * @param algorithm its checksum algorithm, handed on with each entry
+     * @param handler receives the entries
+     * @return the number of entries read
+     * @throws IOException if the manifest cannot be read
+     */
+    public static long read(final Path manifest, final String algorithm,
+            final Handler handler) throws IOException {
+        return read(manifest, algorithm, handler, BUFFER_SIZE);
+    }
+
+    static long read(final Path manifest, final String algorithm,
+            final Handler handler, final int bufferSize) throws IOException {
+        return new ManifestReader(algorithm, bufferSize).readAll(manifest,
+                handler);
+    }
+
+    /**
+     * @param algorithm the checksum algorithm of the manifest
+     * @return a reader for single lines, see {@link #parseLine(byte[], int,
+     *         long)}
+     */
+    static ManifestReader lineReader(final String algorithm) {
+        return new ManifestReader(algorithm, 256);
+    }
+
+    /**
+     * Parses one line of a manifest, e.g. one found through a
+     * {@link ManifestIndex}.
+     *
+     * @param line the bytes of the line, without its line feed
+     * @param length the number of bytes of the line
+     * @param offset the offset of the line in the manifest
+     * @return the entry, reused by the next call; or null if the line holds
+     *         none
+     */
+    Entry parseLine(final byte[] line, final int length, final long offset) {
+        return parse(line, 0, length, offset) ? entry : null;
+    }
+
+    private long readAll(final Path manifest, final Handler handler)
+        throws IOException {
+        long entries = 0;
+        try (final FileChannel channel = FileChannel.open(manifest, READ)) {
+            // the offset in the file of the start of the buffer
+            long base = 0;
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(bytes) < 0;
+                final byte[] array = bytes.array();
+                final int limit = bytes.position();
+                int start = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (array[i] == '\n') {
+                        if (parse(array, start, i, base + start)) {
+                            entries++;
+                            if (!handler.entry(entry)) {
+                                return entries;
+                            }
+                        }
+                        start = i + 1;
+                    }
+                }
+                if (eof && start < limit) {
+                    // a last line without a line feed
+                    if (parse(array, start, limit, base + start)) {
+                        entries++;
+                        handler.entry(entry);
+                    }
+                    start = limit;
+                }
+                if (start == 0 && limit == bytes.capacity()) {
+                    // a line longer than the buffer
+                    final ByteBuffer larger =
+                            ByteBuffer.allocate(bytes.capacity() * 2);
+                    bytes.flip();
+                    larger.put(bytes);
+                    bytes = larger;
+                } else {
+                    bytes.limit(limit).position(start);
+                    bytes.compact();
+                    base += start;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Parses the line array[from, to) into the entry.
+     *
+     * @return false if the line holds no entry
+     */
+    private boolean parse(final byte[] array, final int from, final int to,
+            final long offset) {
+        int end = to;
+        if (end > from && array[end - 1] == '\r') {
+            end--;
+        }
+        int i = from;
+        while (i < end && isBlank(array[i])) {
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        final StringBuilder digest = entry.digest;
+        digest.setLength(0);
+        while (i < end && !isBlank(array[i])) {
+            digest.append((char) (array[i] & 0xff));
+            i++;
+        }
+        while (i < end && isBlank(array[i])) {
+            i++;
+        }
+        if (i == end) {
+            logger.warn("Ignoring manifest line without a path at byte {}",
+                    offset);
+            return false;
+        }
+        decodePath(array, i, end);
+        entry.offset = offset;
+        entry.length = to - from;
+        return true;
+    }
+
+    private void decodePath(final byte[] array, final int from, final int to) {
+        if (chars.capacity() < to - from) {
+            chars = CharBuffer.allocate(to - from);
+        }
+        if (lineBytes == null || lineBytes.array() != array) {
+            lineBytes = ByteBuffer.wrap(array);
+        }
+        lineBytes.limit(to).position(from);
+        chars.clear();
+        decoder.reset();
+        decoder.decode(lineBytes, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        final StringBuilder path = entry.path;
+        path.setLength(0);
+        final int length = chars.limit();
+        for (int i = 0; i < length; i++) {
+            final char c = chars.get(i);
+            if (c == '%' && i + 2 < length) {
+                final int decoded = percentDecoded(chars.get(i + 1), chars
+                        .get(i + 2));
+                if (decoded >= 0) {
+                    path.append((char) decoded);
+                    i += 2;
+                    continue;
+                }
+            }
+            path.append(c);
+        }
+    }
+
+    /**
+     * @return the character encoded, or -1 if it is not one the BagIt
+     *         specification encodes
+     */
+    private static int percentDecoded(final char high, final char low) {
+        if (high == '0') {
+            if (low == 'A' || low == 'a') {
+                return '\n';
+            } else if (low == 'D' || low == 'd') {
+                return '\r';
+            }
+        } else if (high == '2' && low == '5') {
+            return '%';
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * One entry of a manifest. The digest and path are reused for the next
+     * entry once the handler returns.
+     */
+    public static final class Entry {
+
+        private final String algorithm;
+
+        private final StringBuilder digest = new StringBuilder(128);
+
+        private final StringBuilder path = new StringBuilder(256);
+
+        private long offset;
+
+        private int length;
+
+        Entry(final String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public CharSequence getDigest() {
+            return digest;
+        }
+
+        /**
+         * @return the path, relative to the bag, with percent-encoding
+         *         undone
+         */
+        public CharSequence getPath() {
+            return path;
+        }
+
+        /**
+         * @return the offset in the manifest of the first byte of the line
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the length in bytes of the line, without its line feed
+         *         but with the carriage return before it, if any
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+}
@@ -20,14 +20,14 @@ import static java.util.regex.Pattern.compile;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.LineNumberReader;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,20 +51,81 @@ public class ManifestUtil {
     static GetFilesFromManifest getFilesFromManifest =
             new GetFilesFromManifest();
 
-    static boolean isManifest(final String fileName) {
+    private static final ConcurrentMap<String, Boolean> supportedAlgorithms =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @param fileName the name of a file in a bag
+     * @return the checksum algorithm of the payload manifest, or null if the
+     *         file is not a payload manifest with a supported algorithm
+     */
+    static String getManifestAlgorithm(final String fileName) {
         final Matcher m = MANIFEST.matcher(fileName);
         if (m.find()) {
             final String csa = m.group(1);
+            if (isSupportedAlgorithm(csa)) {
+                return csa;
+            }
+            logger.warn(
+                    "Ignoring potential manifest file {} because {} is not a supported checksum algorithm.",
+                    fileName, csa);
+        }
+        return null;
+    }
+
+    /**
+     * @param fileName the name of a file in a bag
+     * @return the checksum algorithm of the tag manifest, or null if the file
+     *         is not a tag manifest with a supported algorithm
+     */
+    static String getTagManifestAlgorithm(final String fileName) {
+        final Matcher m = TAG_MANIFEST.matcher(fileName);
+        if (m.find()) {
+            final String csa = m.group(1);
+            if (isSupportedAlgorithm(csa)) {
+                return csa;
+            }
+            logger.warn(
+                    "Ignoring potential tag-manifest file {} because {} is not a supported checksum algorithm.",
+                    fileName, csa);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up (once per algorithm) whether the JVM can compute a BagIt
+     * checksum algorithm.
+     * 
+     * @param csa the algorithm as named in a manifest file name, e.g. "sha256"
+     */
+    static boolean isSupportedAlgorithm(final String csa) {
+        Boolean supported = supportedAlgorithms.get(csa);
+        if (supported == null) {
             try {
-                MessageDigest.getInstance(csa);
-                return true;
+                MessageDigest.getInstance(toDigestAlgorithm(csa));
+                supported = Boolean.TRUE;
             } catch (final NoSuchAlgorithmException e) {
-                logger.warn(
-                        "Ignoring potential manifest file {} because {} is not a supported checksum algorithm.",
-                        fileName, csa);
+                supported = Boolean.FALSE;
             }
+            supportedAlgorithms.putIfAbsent(csa, supported);
+        }
+        return supported;
+    }
+
+    /**
+     * @param csa the algorithm as named in a manifest file name
+     * @return the name the JCA knows the algorithm by, e.g. "SHA-256"
+     */
+    static String toDigestAlgorithm(final String csa) {
+        if (csa.length() > 3 && csa.regionMatches(true, 0, "sha", 0, 3) &&
+                Character.isDigit(csa.charAt(3))) {
+            return "SHA-" + csa.substring(3);
         }
-        return false;
+        return csa;
+    }
+
+    static boolean isManifest(final String fileName) {
+        return getManifestAlgorithm(fileName) != null;
     }
 
     static boolean isManifest(final File file) {
@@ -80,19 +141,7 @@ public class ManifestUtil {
     }
 
     static boolean isTagManifest(final String fileName) {
-        final Matcher m = TAG_MANIFEST.matcher(fileName);
-        if (m.find()) {
-            final String csa = m.group(1);
-            try {
-                MessageDigest.getInstance(csa);
-                return true;
-            } catch (final NoSuchAlgorithmException e) {
-                logger.warn(
-                        "Ignoring potential tag-manifest file {} because {} is not a supported checksum algorithm.",
-                        fileName, csa);
-            }
-        }
-        return false;
+        return getTagManifestAlgorithm(fileName) != null;
     }
 
     static boolean isTagManifest(final File file) {
@@ -104,27 +153,53 @@ public class ManifestUtil {
     }
 
     static boolean isTagManifest(final Path path) {
-        return isManifest(path.getFileName().toString());
+        return isTagManifest(path.getFileName().toString());
+    }
+
+    /**
+     * @return true if the file is one of the tag files whose content is held
+     *         in a bag snapshot
+     */
+    static boolean isBagMetadata(final String fileName) {
+        return "bagit.txt".equals(fileName) ||
+                "bag-info.txt".equals(fileName) ||
+                "package-info.txt".equals(fileName);
+    }
+
+    static boolean isBagMetadata(final Path path) {
+        return isBagMetadata(path.getFileName().toString());
     }
 
+    /**
+     * Lists the files named in a manifest, read with a
+     * {@link ManifestReader}.
+     */
     static class GetFilesFromManifest implements
             Function<File, Collection<File>> {
 
         @Override
         public Collection<File> apply(final File input) {
-            try (final LineNumberReader lnr =
-                    new LineNumberReader(new FileReader(input))) {
-                final ArrayList<File> result = new ArrayList<File>();
-                String line;
-                while ((line = lnr.readLine()) != null) {
-                    final String fileName = line.split(" ")[0];
-                    final File file = new File(input.getParentFile(), fileName);
-                    result.add(file);
-                }
-                return result;
+            final String name = input.getName();
+            final String algorithm =
+                    isManifest(name) ? getManifestAlgorithm(name)
+                            : getTagManifestAlgorithm(name);
+            final ArrayList<File> result = new ArrayList<File>();
+            try {
+                ManifestReader.read(input.toPath(), algorithm,
+                        new ManifestReader.Handler() {
+
+                            @Override
+                            public boolean entry(
+                                    final ManifestReader.Entry entry) {
+                                result.add(new File(input.getParentFile(),
+                                        entry.getPath().toString()));
+                                return true;
+                            }
+                        });
             } catch (final IOException e) {
                 throw new RuntimeException(e);
             }
+            return result;
         }
     }
 
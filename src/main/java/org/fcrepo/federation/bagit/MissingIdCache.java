@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers ids that were looked up and found missing, grouped by the id of
+ * the directory they would be in, so that repeated probes (typos, deleted
+ * bags, jcr:content on folders) are answered without touching the
+ * filesystem. A group is dropped when something is created in its
+ * directory, when it expires, or when the cache is full and it is the least
+ * recently used.
+ */
+public class MissingIdCache {
+
+    private final int maxEntries;
+
+    private final long ttlMillis;
+
+    private final LinkedHashMap<String, Group> groups =
+            new LinkedHashMap<String, Group>(16, 0.75f, true);
+
+    private int size;
+
+    /**
+     * @param maxEntries the maximum number of missing ids remembered; 0
+     *        disables the cache
+     * @param ttlMillis how long a miss is trusted without a create event
+     */
+    public MissingIdCache(final int maxEntries, final long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param id a node id
+     * @return true if the id was recently found missing
+     */
+    public synchronized boolean isMissing(final String id) {
+        final String parentId = parentOf(id);
+        final Group group = groups.get(parentId);
+        if (group == null) {
+            return false;
+        }
+        if (group.expires <= System.currentTimeMillis()) {
+            remove(parentId);
+            return false;
+        }
+        return group.ids.contains(id);
+    }
+
+    /**
+     * @param id a node id that was found missing
+     */
+    public synchronized void addMissing(final String id) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        final String parentId = parentOf(id);
+        Group group = groups.get(parentId);
+        if (group == null) {
+            group = new Group(System.currentTimeMillis() + ttlMillis);
+            groups.put(parentId, group);
+        }
+        if (group.ids.add(id)) {
+            size++;
+        }
+        final Iterator<Group> eldest = groups.values().iterator();
+        while (size > maxEntries && eldest.hasNext()) {
+            size -= eldest.next().ids.size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Forgets the misses in one directory.
+     *
+     * @param parentId the id of the directory
+     */
+    public synchronized void invalidate(final String parentId) {
+        remove(parentId);
+    }
+
+    /**
+     * Forgets the misses in a directory and every directory below it.
+     *
+     * @param id the id of the directory
+     */
+    public synchronized void invalidateTree(final String id) {
+        final String prefix = id.endsWith("/") ? id : id + "/";
+        final Iterator<Map.Entry<String, Group>> it =
+                groups.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Group> entry = it.next();
+            if (entry.getKey().equals(id) ||
+                    entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().ids.size();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        groups.clear();
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void remove(final String parentId) {
+        final Group group = groups.remove(parentId);
+        if (group != null) {
+            size -= group.ids.size();
+        }
+    }
+
+    static String parentOf(final String id) {
+        final int slash = id.lastIndexOf('/');
+        return slash <= 0 ? "/" : id.substring(0, slash);
+    }
+
+    private static final class Group {
+
+        final Set<String> ids = new HashSet<String>(4);
+
+        final long expires;
+
+        Group(final long expires) {
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Owner names by uid, so that jcr:createdBy does not cost a user-database
+ * lookup (LDAP, NSS) per document when the whole tree is owned by a handful
+ * of accounts. Where the filesystem gives no uid (POSIX or basic attributes
+ * only), names are kept by directory instead, on the assumption that the
+ * files of one directory (a bag's payload, say) share an owner; a file owned
+ * by someone else may then show its neighbours' owner until the name
+ * expires. Names expire so that renamed accounts are picked up; an owner
+ * that cannot be resolved is cached as unknown for the same time.
+ */
+public class OwnerCache {
+
+    /**
+     * The number of directories whose owner names are kept when there is no
+     * uid to key by.
+     */
+    private static final int MAX_DIRECTORIES = 1024;
+
+    private final long ttlMillis;
+
+    private final ConcurrentMap<Integer, Entry> names =
+            new ConcurrentHashMap<Integer, Entry>();
+
+    private final Map<Path, Entry> namesByDirectory = Collections
+            .synchronizedMap(new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<Path, Entry> eldest) {
+                    return size() > MAX_DIRECTORIES;
+                }
+            });
+
+    /**
+     * @param ttlMillis how long a resolved name is trusted
+     */
+    public OwnerCache(final long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @param attrs the attributes of a file
+     * @return the name of the file's owner, or null if it is not known
+     */
+    public String ownerOf(final FileAttributes attrs) {
+        final int uid = attrs.uid();
+        if (uid < 0) {
+            return ownerByDirectory(attrs);
+        }
+        final long now = System.currentTimeMillis();
+        final Entry entry = names.get(uid);
+        if (entry != null && entry.expires > now) {
+            return entry.name;
+        }
+        final String name = resolve(attrs);
+        names.put(uid, new Entry(name, now + ttlMillis));
+        return name;
+    }
+
+    public void clear() {
+        names.clear();
+        namesByDirectory.clear();
+    }
+
+    int size() {
+        return names.size() + namesByDirectory.size();
+    }
+
+    private String ownerByDirectory(final FileAttributes attrs) {
+        final Path dir = attrs.path().getParent();
+        if (dir == null) {
+            return resolve(attrs);
+        }
+        final long now = System.currentTimeMillis();
+        final Entry entry = namesByDirectory.get(dir);
+        if (entry != null && entry.expires > now) {
+            return entry.name;
+        }
+        final String name = resolve(attrs);
+        namesByDirectory.put(dir, new Entry(name, now + ttlMillis));
+        return name;
+    }
+
+    private static String resolve(final FileAttributes attrs) {
+        final UserPrincipal owner = attrs.owner();
+        return owner == null ? null : owner.getName();
+    }
+
+    private static final class Entry {
+
+        final String name;
+
+        final long expires;
+
+        Entry(final String name, final long expires) {
+            this.name = name;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Finds changes under the root directory by comparing it with a snapshot
+ * taken on the previous scan, for filesystems (NFS, FUSE mounts of object
+ * stores) where a {@link java.nio.file.WatchService} polls slowly or misses
+ * remote changes. The snapshot is compact: the modification time of each
+ * bag directory and payload directory, and the stamp (size and modification
+ * time) of the manifests and tag files and of the payload files of each bag.
+ * A directory whose modification time has not moved has had no entry added,
+ * removed or renamed, so it is not listed again and its files are not
+ * stat'ed: a poll costs a stat per directory and per tag file, not per
+ * payload file. A payload file rewritten in place does not move the time of
+ * its directory; it is found when a payload manifest of its bag changes
+ * too, as the files of the bag are then stat'ed again. Bags are scanned in
+ * parallel. The changes come out as the events a watch service would have
+ * delivered, file by file, so they are handled exactly like those.
+ */
+public class PollingScanner {
+
+    private static final Logger logger = getLogger(PollingScanner.class);
+
+    private final Path root;
+
+    private final ExecutorService scanners;
+
+    private final boolean payload;
+
+    private volatile boolean closed;
+
+    /**
+     * The modification time of the root at the last scan, or -1 before the
+     * first.
+     */
+    private long rootModified = -1L;
+
+    private final ConcurrentMap<String, BagState> bags =
+            new ConcurrentHashMap<String, BagState>();
+
+    /**
+     * @param root the directory holding the bags
+     * @param threads the number of bags scanned at a time
+     * @param payload whether to look for changes under the data/ of bags
+     */
+    public PollingScanner(final Path root, final int threads,
+            final boolean payload) {
+        this.root = root;
+        this.payload = payload;
+        this.scanners =
+                Executors.newFixedThreadPool(Math.max(1, threads),
+                        new ThreadFactoryBuilder().setDaemon(true)
+                                .setNameFormat("bagit-scanner-%d").build());
+    }
+
+    /**
+     * Compares the root with the previous scan. The first scan only takes
+     * the snapshot and reports nothing.
+     *
+     * @return the changes found, in the order a watch service would report
+     *         them for each bag
+     * @throws IOException if the root cannot be read
+     * @throws InterruptedException if interrupted while bags are scanned
+     */
+    public synchronized List<Change> scan() throws IOException,
+        InterruptedException {
+        final boolean first = rootModified < 0;
+        final FileAttributes attrs = FileAttributes.read(root);
+        if (attrs == null || !attrs.isDirectory()) {
+            throw new IOException("Cannot read the BagIt directory: " + root);
+        }
+        final List<Change> changes = new ArrayList<Change>();
+        final Set<String> added = new HashSet<String>();
+        if (attrs.lastModified() != rootModified) {
+            final Set<String> names = listBags();
+            for (final String name : names) {
+                if (!bags.containsKey(name)) {
+                    added.add(name);
+                    if (!first) {
+                        changes.add(new Change(root.resolve(name),
+                                ENTRY_CREATE));
+                    }
+                }
+            }
+            for (final String name : new ArrayList<String>(bags.keySet())) {
+                if (!names.contains(name)) {
+                    bags.remove(name);
+                    changes.add(new Change(root.resolve(name), ENTRY_DELETE));
+                }
+            }
+            rootModified = attrs.lastModified();
+        }
+        final List<Future<List<Change>>> scanned =
+                new ArrayList<Future<List<Change>>>(bags.size() +
+                        added.size());
+        for (final String name : bags.keySet()) {
+            scanned.add(scanners.submit(scanTask(name, false)));
+        }
+        for (final String name : added) {
+            // a new bag is announced as a whole; its contents are the
+            // snapshot for the next scan
+            scanned.add(scanners.submit(scanTask(name, true)));
+        }
+        try {
+            for (final Future<List<Change>> bag : scanned) {
+                changes.addAll(bag.get());
+            }
+        } catch (final ExecutionException e) {
+            throw new IOException("Could not scan a bag", e.getCause());
+        } finally {
+            for (final Future<List<Change>> bag : scanned) {
+                bag.cancel(true);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @return the number of bags in the snapshot
+     */
+    public int getBagCount() {
+        return bags.size();
+    }
+
+    /**
+     * Stops scanning: the bags of a scan under way that have not been
+     * started are passed over.
+     */
+    public void shutdown() {
+        closed = true;
+        scanners.shutdown();
+    }
+
+    boolean awaitTermination(final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+        return scanners.awaitTermination(timeout, unit);
+    }
+
+    private Set<String> listBags() throws IOException {
+        IoStatistics.directoryRead();
+        final Set<String> names = new HashSet<String>();
+        try (final DirectoryStream<Path> entries =
+                Files.newDirectoryStream(root, BagRegistry.BAG_DIRECTORIES)) {
+            for (final Path entry : entries) {
+                names.add(entry.getFileName().toString());
+            }
+        } catch (final DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        return names;
+    }
+
+    private Callable<List<Change>> scanTask(final String name,
+            final boolean quiet) {
+        return new Callable<List<Change>>() {
+
+            @Override
+            public List<Change> call() {
+                final List<Change> changes = new ArrayList<Change>();
+                if (closed) {
+                    return changes;
+                }
+                final BagState previous = quiet ? null : bags.get(name);
+                final BagState next =
+                        scanBag(root.resolve(name), previous, changes);
+                if (next != null) {
+                    bags.put(name, next);
+                }
+                return changes;
+            }
+        };
+    }
+
+    /**
+     * @param bag the bag directory
+     * @param previous its last snapshot, or null to take one silently
+     * @param changes collects the differences from the last snapshot
+     * @return the new snapshot, or null if the bag is gone (the scan of the
+     *         root will report it)
+     */
+    private BagState scanBag(final Path bag, final BagState previous,
+            final List<Change> changes) {
+        final FileAttributes attrs = FileAttributes.read(bag);
+        if (attrs == null || !attrs.isDirectory()) {
+            return null;
+        }
+        final BagState next = new BagState(attrs.lastModified());
+        final Collection<String> tagFiles;
+        if (previous != null && previous.modified == attrs.lastModified()) {
+            tagFiles = previous.tagFiles.keySet();
+        } else {
+            tagFiles = listTagFiles(bag);
+        }
+        for (final String name : tagFiles) {
+            final FileAttributes tag = FileAttributes.read(bag.resolve(name));
+            if (tag != null && tag.isRegularFile()) {
+                next.tagFiles.put(name, tag.stamp());
+            }
+        }
+        boolean manifestsChanged = false;
+        if (previous != null) {
+            for (final Map.Entry<String, FileStamp> tag : next.tagFiles
+                    .entrySet()) {
+                final FileStamp before = previous.tagFiles.get(tag.getKey());
+                if (before == null) {
+                    changes.add(new Change(bag.resolve(tag.getKey()),
+                            ENTRY_CREATE));
+                } else if (!before.equals(tag.getValue())) {
+                    changes.add(new Change(bag.resolve(tag.getKey()),
+                            ENTRY_MODIFY));
+                } else {
+                    continue;
+                }
+                manifestsChanged |= ManifestUtil.isManifest(tag.getKey());
+            }
+            for (final String name : previous.tagFiles.keySet()) {
+                if (!next.tagFiles.containsKey(name)) {
+                    changes.add(new Change(bag.resolve(name), ENTRY_DELETE));
+                }
+            }
+        }
+        if (payload) {
+            scanDirectory(bag, IdTranslator.DATA, previous, next,
+                    manifestsChanged, changes);
+        }
+        return next;
+    }
+
+    /**
+     * Compares a payload directory and those below it with the snapshot.
+     * Only the directories whose modification time has moved are listed;
+     * the others keep their snapshot, unless restat is set (a payload
+     * manifest changed), in which case the files known in them are stat'ed
+     * for rewrites in place.
+     */
+    private void scanDirectory(final Path bag, final String relative,
+            final BagState previous, final BagState next,
+            final boolean restat, final List<Change> changes) {
+        final Path dir = bag.resolve(relative);
+        final FileAttributes attrs = FileAttributes.read(dir);
+        final DirState before =
+                previous == null ? null : previous.directories.get(relative);
+        if (attrs == null || !attrs.isDirectory()) {
+            if (before != null) {
+                changes.add(new Change(dir, ENTRY_DELETE));
+            }
+            return;
+        }
+        final DirState state;
+        if (before != null && before.modified == attrs.lastModified()) {
+            state = restat ? restatFiles(dir, before, changes) : before;
+        } else {
+            state = listDirectory(dir, relative, attrs.lastModified());
+            if (before != null) {
+                compare(bag, dir, before, state, changes);
+            } else if (previous != null) {
+                changes.add(new Change(dir, ENTRY_CREATE));
+            }
+        }
+        next.directories.put(relative, state);
+        for (final String subdir : state.subdirectories) {
+            // below a new directory nothing more is reported: its create
+            // stands for its whole tree
+            scanDirectory(bag, subdir, before == null ? null : previous,
+                    next, restat, changes);
+        }
+    }
+
+    /**
+     * Stats the files known in a directory whose entries have not changed,
+     * and reports those whose stamp has.
+     */
+    private static DirState restatFiles(final Path dir, final DirState before,
+            final List<Change> changes) {
+        final int count = before.files.length;
+        final String[] files = new String[count];
+        final long[] sizes = new long[count];
+        final long[] modified = new long[count];
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            final Path file = dir.resolve(before.files[i]);
+            final FileAttributes attrs = FileAttributes.read(file);
+            if (attrs == null || !attrs.isRegularFile()) {
+                // replaced within the time resolution of the directory
+                changes.add(new Change(file, ENTRY_DELETE));
+                continue;
+            }
+            if (attrs.size() != before.sizes[i] ||
+                    attrs.lastModified() != before.lastModified[i]) {
+                changes.add(new Change(file, ENTRY_MODIFY));
+            }
+            files[kept] = before.files[i];
+            sizes[kept] = attrs.size();
+            modified[kept] = attrs.lastModified();
+            kept++;
+        }
+        return new DirState(before.modified, before.subdirectories,
+                Arrays.copyOf(files, kept), Arrays.copyOf(sizes, kept),
+                Arrays.copyOf(modified, kept));
+    }
+
+    /**
+     * Reports the differences between two listings of a directory: files
+     * created, deleted or modified, and subdirectories deleted (a new
+     * subdirectory is reported by its own scan).
+     */
+    private static void compare(final Path bag, final Path dir,
+            final DirState before, final DirState after,
+            final List<Change> changes) {
+        int i = 0;
+        int j = 0;
+        while (i < before.files.length || j < after.files.length) {
+            final int order =
+                    i == before.files.length ? 1 : j == after.files.length
+                            ? -1 : before.files[i].compareTo(after.files[j]);
+            if (order < 0) {
+                changes.add(new Change(dir.resolve(before.files[i++]),
+                        ENTRY_DELETE));
+            } else if (order > 0) {
+                changes.add(new Change(dir.resolve(after.files[j++]),
+                        ENTRY_CREATE));
+            } else {
+                if (before.sizes[i] != after.sizes[j] ||
+                        before.lastModified[i] != after.lastModified[j]) {
+                    changes.add(new Change(dir.resolve(after.files[j]),
+                            ENTRY_MODIFY));
+                }
+                i++;
+                j++;
+            }
+        }
+        for (final String gone : before.subdirectories) {
+            if (!after.subdirectories.contains(gone)) {
+                changes.add(new Change(bag.resolve(gone), ENTRY_DELETE));
+            }
+        }
+    }
+
+    private static List<String> listTagFiles(final Path bag) {
+        IoStatistics.directoryRead();
+        final List<String> names = new ArrayList<String>();
+        try (final DirectoryStream<Path> entries =
+                Files.newDirectoryStream(bag)) {
+            for (final Path entry : entries) {
+                final String name = entry.getFileName().toString();
+                if (ManifestUtil.isManifest(name) ||
+                        ManifestUtil.isTagManifest(name) ||
+                        ManifestUtil.isBagMetadata(name)) {
+                    names.add(name);
+                }
+            }
+        } catch (final IOException | DirectoryIteratorException e) {
+            logger.debug("Cannot list bag: " + bag, e);
+        }
+        return names;
+    }
+
+    private static DirState listDirectory(final Path dir,
+            final String relative, final long modified) {
+        IoStatistics.directoryRead();
+        final List<String> subdirs = new ArrayList<String>();
+        final SortedMap<String, FileStamp> files =
+                new TreeMap<String, FileStamp>();
+        try (final DirectoryStream<Path> entries =
+                Files.newDirectoryStream(dir)) {
+            for (final Path entry : entries) {
+                final FileAttributes attrs = FileAttributes.read(entry);
+                if (attrs == null) {
+                    continue;
+                } else if (attrs.isDirectory()) {
+                    subdirs.add(relative + '/' + entry.getFileName());
+                } else if (attrs.isRegularFile()) {
+                    files.put(entry.getFileName().toString(), attrs.stamp());
+                }
+            }
+        } catch (final IOException | DirectoryIteratorException e) {
+            logger.debug("Cannot list payload directory: " + dir, e);
+        }
+        final String[] names = new String[files.size()];
+        final long[] sizes = new long[names.length];
+        final long[] lastModified = new long[names.length];
+        int i = 0;
+        for (final Map.Entry<String, FileStamp> file : files.entrySet()) {
+            names[i] = file.getKey();
+            sizes[i] = file.getValue().size();
+            lastModified[i] = file.getValue().lastModified();
+            i++;
+        }
+        return new DirState(modified, subdirs.isEmpty() ? Collections
+                .<String> emptyList() : subdirs, names, sizes, lastModified);
+    }
+
+    /**
+     * A change found by a scan, as a watch service would report it.
+     */
+    public static final class Change {
+
+        private final Path path;
+
+        private final Kind<Path> kind;
+
+        Change(final Path path, final Kind<Path> kind) {
+            this.path = path;
+            this.kind = kind;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public Kind<Path> getKind() {
+            return kind;
+        }
+
+        @Override
+        public String toString() {
+            return kind.name() + " " + path;
+        }
+    }
+
+    /**
+     * What is known of a bag as of the last scan.
+     */
+    private static final class BagState {
+
+        final long modified;
+
+        /**
+         * The manifests, tag manifests and bag metadata files, by name.
+         */
+        final Map<String, FileStamp> tagFiles =
+                new HashMap<String, FileStamp>(8);
+
+        /**
+         * The payload directories, by path relative to the bag.
+         */
+        final Map<String, DirState> directories =
+                new HashMap<String, DirState>(4);
+
+        BagState(final long modified) {
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * What is known of a payload directory as of the last scan. Its files
+     * are kept as parallel arrays sorted by name rather than as a map of
+     * stamps, since a bag may hold hundreds of thousands of them.
+     */
+    private static final class DirState {
+
+        final long modified;
+
+        final List<String> subdirectories;
+
+        final String[] files;
+
+        final long[] sizes;
+
+        final long[] lastModified;
+
+        DirState(final long modified, final List<String> subdirectories,
+                final String[] files, final long[] sizes,
+                final long[] lastModified) {
+            this.modified = modified;
+            this.subdirectories = subdirectories;
+            this.files = files;
+            this.sizes = sizes;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.schematic.document.Document;
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Builds the first children of a bag, and their jcr:content nodes, into the
+ * connector's document cache in the background when the bag is served, since
+ * a client that opens a bag almost always walks its datastreams next. The
+ * number of prefetches in flight is limited; a bag opened while the limit is
+ * reached is not prefetched. The share of prefetched documents later served
+ * from the cache is kept as a hit rate, to tune the number prefetched.
+ */
+public class Prefetcher {
+
+    private static final Logger logger = getLogger(Prefetcher.class);
+
+    private static final int MAX_TRACKED = 10000;
+
+    private final BagItConnector connector;
+
+    private final int count;
+
+    private final Semaphore permits;
+
+    private final ExecutorService executor;
+
+    /**
+     * The ids prefetched and not yet asked for.
+     */
+    private final Set<String> pending = Collections
+            .newSetFromMap(Collections
+                    .synchronizedMap(new LinkedHashMap<String, Boolean>() {
+
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(
+                                final Map.Entry<String, Boolean> eldest) {
+                            return size() > MAX_TRACKED;
+                        }
+                    }));
+
+    private final AtomicLong prefetched = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param connector builds the documents
+     * @param count the number of children of a bag to prefetch
+     * @param maxConcurrent the number of bags prefetched at once
+     */
+    public Prefetcher(final BagItConnector connector, final int count,
+            final int maxConcurrent) {
+        this.connector = connector;
+        this.count = count;
+        this.permits = new Semaphore(maxConcurrent);
+        this.executor =
+                Executors.newFixedThreadPool(maxConcurrent,
+                        new ThreadFactoryBuilder().setDaemon(true)
+                                .setNameFormat("bagit-prefetch-%d").build());
+    }
+
+    /**
+     * Queues the prefetch of the first children of a bag, unless the limit of
+     * concurrent prefetches is reached.
+     *
+     * @param bagId the id of the bag
+     * @param childIds the ids of the children of the bag, in order
+     */
+    public void prefetch(final String bagId,
+            final Collection<String> childIds) {
+        if (childIds.isEmpty()) {
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            skipped.incrementAndGet();
+            logger.trace("Not prefetching {}, too many prefetches running",
+                    bagId);
+            return;
+        }
+        final List<String> ids =
+                new ArrayList<String>(Math.min(count, childIds.size()));
+        for (final String id : childIds) {
+            if (ids.size() == count) {
+                break;
+            }
+            ids.add(id);
+        }
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        load(ids);
+                    } catch (final RuntimeException e) {
+                        logger.debug("Prefetch of " + bagId + " failed", e);
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            permits.release();
+        }
+    }
+
+    private void load(final List<String> ids) {
+        final Map<String, Document> docs = connector.prefetchDocuments(ids);
+        final List<String> contentIds = new ArrayList<String>(docs.size());
+        for (final Map.Entry<String, Document> doc : docs.entrySet()) {
+            final String contentId =
+                    connector.contentIdOf(doc.getKey(), doc.getValue());
+            if (contentId != null) {
+                contentIds.add(contentId);
+            }
+        }
+        track(docs.keySet());
+        if (!contentIds.isEmpty()) {
+            track(connector.prefetchDocuments(contentIds).keySet());
+        }
+    }
+
+    private void track(final Collection<String> ids) {
+        pending.addAll(ids);
+        prefetched.addAndGet(ids.size());
+    }
+
+    /**
+     * Records a document served from the cache, counting a hit if it was
+     * prefetched.
+     *
+     * @param id the id of the document requested
+     */
+    public void requested(final String id) {
+        if (pending.remove(id)) {
+            hits.incrementAndGet();
+        }
+    }
+
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of bags not prefetched because of the limit
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the share of prefetched documents that were asked for
+     */
+    public double getHitRate() {
+        final long total = prefetched.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        logger.debug("Prefetched {} documents, {} hits ({}), {} bags skipped",
+                prefetched.get(), hits.get(), getHitRate(), skipped.get());
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs tasks on a fixed set of single-threaded stripes chosen by key, so
+ * that tasks with different keys run in parallel while tasks with the same
+ * key run one at a time, in the order submitted.
+ */
+public class StripedExecutor {
+
+    private final ExecutorService[] stripes;
+
+    /**
+     * @param stripes the number of stripes, i.e. of threads
+     * @param nameFormat the name of the threads, with a %d for the stripe
+     */
+    public StripedExecutor(final int stripes, final String nameFormat) {
+        this.stripes = new ExecutorService[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] =
+                    Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                            .setDaemon(true).setNameFormat(
+                                    String.format(nameFormat, i)).build());
+        }
+    }
+
+    /**
+     * @param key decides the stripe
+     * @param task the task
+     * @throws java.util.concurrent.RejectedExecutionException if shut down
+     */
+    public void execute(final Object key, final Runnable task) {
+        stripes[stripeOf(key)].execute(task);
+    }
+
+    int stripeOf(final Object key) {
+        final int h = key.hashCode();
+        // spread the bits, as HashMap does
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Lets queued tasks finish, accepting no new ones.
+     */
+    public void shutdown() {
+        for (final ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    /**
+     * @return the tasks that never started
+     */
+    public List<Runnable> shutdownNow() {
+        final List<Runnable> dropped = new ArrayList<Runnable>();
+        for (final ExecutorService stripe : stripes) {
+            dropped.addAll(stripe.shutdownNow());
+        }
+        return dropped;
+    }
+
+    /**
+     * @param timeout the longest to wait, across all stripes
+     * @param unit the unit of the timeout
+     * @return true if every stripe finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (final ExecutorService stripe : stripes) {
+            final long left = deadline - System.nanoTime();
+            if (!stripe.awaitTermination(Math.max(0L, left),
+                    TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -17,11 +17,18 @@
 package org.fcrepo.federation.bagit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -29,18 +36,31 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.jcr.NamespaceRegistry;
 import javax.jcr.RepositoryException;
 
+import org.apache.commons.io.FileUtils;
+import org.infinispan.schematic.document.Document;
+import org.infinispan.schematic.document.EditableDocument;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.modeshape.common.logging.Logger;
+import org.modeshape.common.util.SecureHash;
 import org.modeshape.jcr.ExecutionContext;
 import org.modeshape.jcr.api.nodetype.NodeTypeManager;
 import org.modeshape.jcr.federation.spi.Connector;
+import org.modeshape.jcr.federation.spi.ConnectorChangeSet;
 import org.modeshape.jcr.federation.spi.DocumentWriter;
+import org.modeshape.jcr.federation.spi.PageKey;
+import org.modeshape.jcr.federation.spi.PageWriter;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Property;
 
 public class BagItConnectorTest {
 
@@ -118,6 +138,192 @@ public class BagItConnectorTest {
         verify(mockWriter).setParent(eq("/foo"));
     }
 
+    @Test
+    public void getDocumentByIdCached() throws IOException {
+        final File data = new File(new File(tempDir, "foo"), "data");
+        data.mkdirs();
+        touch(new File(data, "bar"));
+        final EditableDocument mockDoc = mock(EditableDocument.class);
+        final EditableDocument copy = mockDocument();
+        when(mockDoc.clone()).thenReturn(copy);
+        when(mockWriter.document()).thenReturn(mockDoc);
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        assertEquals(mockDoc, testObj.getDocumentById("/foo/bar"));
+        // served from the cache's own copy, which no caller can change
+        assertEquals(copy, testObj.getDocumentById("/foo/bar"));
+        verify(mockFactory, times(1)).getDocumentWriter("/foo/bar");
+        // a modification to the file invalidates the cached document
+        final FileOutputStream out =
+                new FileOutputStream(new File(data, "bar"));
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        testObj.getDocumentById("/foo/bar");
+        verify(mockFactory, times(2)).getDocumentWriter("/foo/bar");
+    }
+
+    @Test
+    public void getDocumentByIdCachedUntilManifestChanges()
+        throws IOException {
+        final File foo = new File(tempDir, "foo");
+        final File data = new File(foo, "data");
+        data.mkdirs();
+        touch(new File(data, "bar"));
+        final File manifest = new File(foo, "manifest-md5.txt");
+        FileUtils.writeStringToFile(manifest, "abc data/bar\n");
+        when(mockWriter.document()).thenReturn(mockDocument());
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        testObj.getDocumentById("/foo/bar");
+        testObj.getDocumentById("/foo/bar");
+        verify(mockFactory, times(1)).getDocumentWriter("/foo/bar");
+        // a new digest for an unchanged file
+        FileUtils.writeStringToFile(manifest, "abcdef data/bar\n");
+        testObj.getDocumentById("/foo/bar");
+        verify(mockFactory, times(2)).getDocumentWriter("/foo/bar");
+    }
+
+    @Test
+    public void getDocumentByIdRereadsStaleSnapshot() throws IOException {
+        final File foo = new File(tempDir, "foo");
+        new File(foo, "data").mkdirs();
+        final File bagInfo = new File(foo, "bag-info.txt");
+        FileUtils.writeStringToFile(bagInfo, "Source-Organization: one\n");
+        when(mockWriter.document()).thenReturn(mockDocument());
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        testObj.getDocumentById("/foo");
+        final BagSnapshot before = testObj.getBagSnapshot("/foo");
+        // rewritten without the monitor seeing it
+        FileUtils.writeStringToFile(bagInfo,
+                "Source-Organization: one and two\n");
+        testObj.getDocumentById("/foo");
+        verify(mockFactory, times(2)).getDocumentWriter("/foo");
+        final BagSnapshot after = testObj.getBagSnapshot("/foo");
+        assertFalse(before == after);
+        assertEquals(FileStamp.of(bagInfo), after.getBagInfoStamp());
+    }
+
+    @Test
+    public void testBagSnapshotsAreBounded() throws Exception {
+        final Field size =
+                BagItConnector.class.getDeclaredField("bagSnapshotCacheSize");
+        size.setAccessible(true);
+        size.set(testObj, 2);
+        for (final String name : new String[] {"a", "b", "c"}) {
+            final File bag = new File(tempDir, name);
+            bag.mkdirs();
+            touch(new File(bag, "bag-info.txt"));
+        }
+        final BagSnapshot a = testObj.getBagSnapshot("/a");
+        testObj.getBagSnapshot("/b");
+        assertTrue(a == testObj.getBagSnapshot("/a"));
+        // /b is now the least recently used
+        testObj.getBagSnapshot("/c");
+        assertNull(testObj.cachedBagSnapshot(new File(tempDir, "b").toPath()));
+        assertTrue(a == testObj.getBagSnapshot("/a"));
+    }
+
+    @Test
+    public void getDocumentByIdWithRecordedDigests() throws IOException {
+        final File foo = new File(tempDir, "foo");
+        final File data = new File(foo, "data");
+        data.mkdirs();
+        touch(new File(data, "bar"));
+        FileUtils.writeStringToFile(new File(foo, "manifest-md5.txt"),
+                "abc data/bar\n");
+        FileUtils.writeStringToFile(new File(foo, "manifest-sha1.txt"),
+                "def data/other\nfed data/bar\n");
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        testObj.getDocumentById("/foo/bar");
+        verify(mockWriter).addProperty("bagit:checksum.md5", "abc");
+        verify(mockWriter).addProperty("bagit:checksum.sha1", "fed");
+        testObj.getDocumentById("/foo/bar/jcr:content");
+        verify(mockWriter, times(2)).addProperty("bagit:checksum.md5", "abc");
+    }
+
+    @Test
+    public void testBinaryKeys() throws Exception {
+        final File foo = new File(tempDir, "foo");
+        final File data = new File(foo, "data");
+        data.mkdirs();
+        final File listed = new File(data, "listed");
+        final File unlisted = new File(data, "unlisted");
+        FileUtils.writeStringToFile(listed, "listed");
+        FileUtils.writeStringToFile(unlisted, "unlisted");
+        final String recorded = "0123456789ABCDEF0123456789ABCDEF01234567";
+        FileUtils.writeStringToFile(new File(foo, "manifest-sha1.txt"),
+                recorded + " data/listed\n");
+        assertEquals(recorded.toLowerCase(), testObj.binaryFor(listed)
+                .getKey().toString());
+        // hashed from the content when no manifest lists the file
+        assertEquals(contentKey(unlisted), testObj.binaryFor(unlisted)
+                .getKey().toString());
+
+        final Field stampBinaryKeys =
+                BagItConnector.class.getDeclaredField("stampBinaryKeys");
+        stampBinaryKeys.setAccessible(true);
+        stampBinaryKeys.set(testObj, true);
+        final String stamped =
+                testObj.binaryFor(unlisted).getKey().toString();
+        assertFalse(contentKey(unlisted).equals(stamped));
+        assertEquals(stamped, testObj.binaryFor(unlisted).getKey().toString());
+        unlisted.setLastModified(unlisted.lastModified() - 10000);
+        assertFalse(stamped.equals(testObj.binaryFor(unlisted).getKey()
+                .toString()));
+    }
+
+    private static String contentKey(final File file) throws Exception {
+        return SecureHash.asHexString(SecureHash.getHash(
+                SecureHash.Algorithm.SHA_1, file));
+    }
+
+    @Test
+    public void getDocumentByIdMissing() throws IOException {
+        final File data = new File(new File(tempDir, "foo"), "data");
+        data.mkdirs();
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        assertNull(testObj.getDocumentById("/foo/bar"));
+        final File bar = new File(data, "bar");
+        touch(bar);
+        // remembered as missing until a create event under /foo
+        assertNull(testObj.getDocumentById("/foo/bar"));
+        testObj.invalidateMissing(bar.toPath());
+        testObj.getDocumentById("/foo/bar");
+        verify(mockFactory).getDocumentWriter("/foo/bar");
+    }
+
+    @Test
+    public void getDocumentsByIds() throws IOException {
+        final File data = new File(new File(tempDir, "foo"), "data");
+        data.mkdirs();
+        final List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            touch(new File(data, "ds" + i));
+            ids.add("/foo/ds" + i);
+        }
+        ids.add("/foo/missing");
+        ids.add("/foo");
+        when(mockWriter.document()).thenReturn(mockDocument());
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        // a cached document keeps its place among the built ones
+        testObj.getDocumentById("/foo/ds5");
+        final Map<String, Document> docs = testObj.getDocumentsByIds(ids);
+        assertEquals(11, docs.size());
+        assertFalse(docs.containsKey("/foo/missing"));
+        final List<String> expected = new ArrayList<String>(ids);
+        expected.remove("/foo/missing");
+        assertEquals(expected, new ArrayList<String>(docs.keySet()));
+        for (int i = 0; i < 10; i++) {
+            verify(mockFactory).getDocumentWriter("/foo/ds" + i);
+        }
+        verify(mockFactory).getDocumentWriter("/foo");
+        verify(mockFactory, never()).getDocumentWriter("/foo/missing");
+    }
+
     @Test
     public void testFileFor() throws IOException {
         final File data = new File(new File(tempDir, "foo"), "data");
@@ -136,6 +342,116 @@ public class BagItConnectorTest {
         assertEquals(result, "/foo/bar");
     }
 
+    @Test
+    public void testFileForDeep() throws IOException {
+        final File dir = new File(tempDir, "foo/data/a/b/c");
+        dir.mkdirs();
+        touch(new File(dir, "d"));
+        final File result = testObj.fileFor("/foo/a/b/c/d/jcr:content");
+        assertTrue(result.exists());
+        assertEquals(dir.getAbsolutePath(), result.getParent());
+        assertEquals("/foo/a/b/c/d", testObj.idFor(result));
+        assertEquals("/foo/a/b", testObj.idFor(result.getParentFile()
+                .getParentFile()));
+    }
+
+    @Test
+    public void getDocumentByIdDeep() throws IOException {
+        final File dir = new File(tempDir, "foo/data/a/b");
+        dir.mkdirs();
+        touch(new File(dir, "c"));
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        testObj.getDocumentById("/foo/a");
+        verify(mockWriter).addChild("/foo/a/b", "b");
+        verify(mockWriter).setParent(eq("/foo"));
+        testObj.getDocumentById("/foo/a/b/c");
+        verify(mockWriter).addChild("/foo/a/b/c/jcr:content", "jcr:content");
+        verify(mockWriter).setParent(eq("/foo/a/b"));
+    }
+
+    @Test
+    public void testGetChildren() throws Exception {
+        final File data = new File(new File(tempDir, "foo"), "data");
+        data.mkdirs();
+        for (int i = 0; i < 5; i++) {
+            touch(new File(data, "bar" + i));
+        }
+        final Field pageSize = BagItConnector.class.getDeclaredField("pageSize");
+        pageSize.setAccessible(true);
+        pageSize.set(testObj, 2);
+        when(mockFactory.getDocumentWriter(any(String.class))).thenReturn(
+                mockWriter);
+        testObj.getDocumentById("/foo");
+        verify(mockWriter, times(2)).addChild(startsWith("/foo/bar"),
+                startsWith("bar"));
+        verify(mockWriter).addPage("/foo", 2, 2L, PageWriter.UNKNOWN_TOTAL_SIZE);
+
+        final PageWriter mockPageWriter = mock(PageWriter.class);
+        when(mockFactory.getPageWriter(any(PageKey.class))).thenReturn(
+                mockPageWriter);
+        testObj.getChildren(new PageKey("/foo", "4", 2L));
+        verify(mockPageWriter, times(1)).addChild(startsWith("/foo/bar"),
+                startsWith("bar"));
+        verify(mockPageWriter, never()).addPage(any(String.class), anyInt(),
+                anyLong(), anyLong());
+    }
+
+    @Test
+    public void testGetRootChildren() throws IOException {
+        final File bag = new File(tempDir, "foo");
+        bag.mkdirs();
+        // not in the registry until the monitor reports it
+        new File(tempDir, "bar").mkdirs();
+        assertTrue(testObj.registerBag(bag.toPath()));
+        final PageWriter mockPageWriter = mock(PageWriter.class);
+        when(mockFactory.getPageWriter(any(PageKey.class))).thenReturn(
+                mockPageWriter);
+        testObj.getChildren(new PageKey("/", "0", 10L));
+        verify(mockPageWriter).addChild("/foo", "foo");
+        verify(mockPageWriter, never()).addChild("/bar", "bar");
+        testObj.unregisterBag(bag.toPath());
+        assertFalse(testObj.getBagRegistry().contains("foo"));
+    }
+
+    @Test
+    public void testRecordPropertyChanges() {
+        final Name kept = mock(Name.class);
+        final Name changed = mock(Name.class);
+        final Name added = mock(Name.class);
+        final Name removed = mock(Name.class);
+        final Property keptProp = mock(Property.class);
+        final Property oldProp = mock(Property.class);
+        final Property newProp = mock(Property.class);
+        final Property addedProp = mock(Property.class);
+        final Property removedProp = mock(Property.class);
+        final Map<Name, Property> before = new HashMap<Name, Property>();
+        before.put(kept, keptProp);
+        before.put(changed, oldProp);
+        before.put(removed, removedProp);
+        final Map<Name, Property> after = new HashMap<Name, Property>();
+        after.put(kept, keptProp);
+        after.put(changed, newProp);
+        after.put(added, addedProp);
+        final ConnectorChangeSet mockChanges = mock(ConnectorChangeSet.class);
+        assertEquals(3, BagItConnector.recordPropertyChanges("/foo", before,
+                after, mockChanges));
+        verify(mockChanges).propertyChanged("/foo", "/foo", oldProp, newProp);
+        verify(mockChanges).propertyAdded("/foo", "/foo", addedProp);
+        verify(mockChanges).propertyRemoved("/foo", "/foo", removedProp);
+        assertEquals(0, BagItConnector.recordPropertyChanges("/foo", after,
+                after, mockChanges));
+    }
+
+    /**
+     * @return a mock document that is its own copy
+     */
+    static EditableDocument mockDocument() {
+        final EditableDocument document = mock(EditableDocument.class);
+        when(document.clone()).thenReturn(document);
+        return document;
+    }
+
     static void touch(final File file) throws IOException {
         final FileOutputStream out = new FileOutputStream(file);
         out.write(new byte[0]);
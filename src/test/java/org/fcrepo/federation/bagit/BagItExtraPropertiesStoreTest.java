@@ -17,12 +17,15 @@
 package org.fcrepo.federation.bagit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
 
 import org.junit.Before;
@@ -50,11 +53,17 @@ public class BagItExtraPropertiesStoreTest {
 
     @Test
     public void testRead() {
-        final BagInfo mockBI = getMockBagInfo();
-        when(connector.getBagInfo("/foo")).thenReturn(mockBI);
+        @SuppressWarnings("unchecked")
+        final Map<Name, Property> mockProps = mock(Map.class);
+        final BagSnapshot snapshot =
+                new BagSnapshot("/foo", new File("foo"), "0.97", "UTF-8",
+                        null, new File("foo/bag-info.txt"), FileStamp.MISSING,
+                        mockProps, Collections.<ManifestFile> emptyList(),
+                        Collections.<ManifestFile> emptyList());
+        when(connector.getBagSnapshot("/foo")).thenReturn(snapshot);
         Map<Name, Property> props = store.getProperties("/foo");
-        verify(connector).getBagInfo("/foo");
-        verify(mockBI).getProperties();
+        verify(connector).getBagSnapshot("/foo");
+        assertSame(mockProps, props);
         props = store.getProperties("/non/existent");
         assertEquals(BagItExtraPropertiesStore.EMPTY, props);
     }
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static java.util.Arrays.asList;
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BagRegistryTest {
+
+    File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        new File(tempDir, "b").mkdirs();
+        new File(tempDir, "a").mkdirs();
+        touch(new File(tempDir, "stray.txt"));
+        final BagRegistry testObj = new BagRegistry();
+        assertEquals(2, testObj.load(tempDir.toPath()));
+        assertEquals(asList("a", "b"), testObj.page(0, 10));
+        assertFalse(testObj.contains("stray.txt"));
+    }
+
+    @Test
+    public void testReloadCatchesUp() throws IOException {
+        new File(tempDir, "a").mkdirs();
+        new File(tempDir, "b").mkdirs();
+        final BagRegistry testObj = new BagRegistry();
+        testObj.load(tempDir.toPath());
+        new File(tempDir, "a").delete();
+        new File(tempDir, "c").mkdirs();
+        assertEquals(2, testObj.load(tempDir.toPath()));
+        assertEquals(asList("b", "c"), testObj.page(0, 10));
+        assertEquals(2, testObj.size());
+    }
+
+    @Test
+    public void testAddRemove() {
+        final BagRegistry testObj = new BagRegistry();
+        assertTrue(testObj.add("a"));
+        assertFalse(testObj.add("a"));
+        assertEquals(1, testObj.size());
+        assertTrue(testObj.remove("a"));
+        assertFalse(testObj.remove("a"));
+        assertEquals(0, testObj.size());
+    }
+
+    @Test
+    public void testPage() {
+        final BagRegistry testObj = new BagRegistry();
+        for (final String name : asList("e", "d", "c", "b", "a")) {
+            testObj.add(name);
+        }
+        assertEquals(asList("a", "b"), testObj.page(0, 2));
+        assertEquals(asList("c", "d"), testObj.page(2, 2));
+        assertEquals(asList("e"), testObj.page(4, 2));
+        // no page start remembered for offset 1
+        assertEquals(asList("b", "c"), testObj.page(1, 2));
+        testObj.remove("a");
+        assertEquals(asList("d", "e"), testObj.page(2, 2));
+    }
+}
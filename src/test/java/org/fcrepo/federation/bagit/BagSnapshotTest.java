@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URISyntaxException;
+
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.ValueFactories;
+
+public class BagSnapshotTest {
+
+    private final ExecutionContext context = ExecutionContext.DEFAULT_CONTEXT;
+
+    @Test
+    public void testReadCurrentBag() throws URISyntaxException {
+        final BagSnapshot snapshot = read("/test-objects/BagItFed1");
+        assertEquals("0.96", snapshot.getDeclaredVersion());
+        assertEquals("bag-info.txt", snapshot.getBagInfoFile().getName());
+        final Name bagCount =
+                values().getNameFactory().create("info:fedora/bagit/",
+                        "Bag.Count");
+        assertEquals("1 of 1", snapshot.getProperties().get(bagCount)
+                .getFirstValue());
+        assertEquals(1, snapshot.getPayloadManifests().size());
+        assertEquals("md5", snapshot.getPayloadManifests().get(0)
+                .getAlgorithm());
+        assertEquals(1, snapshot.getTagManifests().size());
+        assertEquals("sha1", snapshot.getTagManifests().get(0).getAlgorithm());
+        assertTrue(snapshot.getTagManifests().get(0).isTagManifest());
+    }
+
+    @Test
+    public void testReadOldBag() throws URISyntaxException {
+        // 0.93 bags keep their bag-info in package-info.txt
+        final BagSnapshot snapshot = read("/bags/v0_93/bag");
+        assertEquals("0.93", snapshot.getDeclaredVersion());
+        assertEquals("package-info.txt", snapshot.getBagInfoFile().getName());
+        assertTrue(snapshot.getBagInfoStamp().exists());
+        assertTrue(snapshot.hasPayloadManifests());
+    }
+
+    @Test
+    public void testReadMissing() {
+        assertNull(BagSnapshot.read("/nope", new File("does-not-exist"),
+                context.getPropertyFactory(), values().getNameFactory()));
+    }
+
+    private BagSnapshot read(final String resource) throws URISyntaxException {
+        final File dir = new File(getClass().getResource(resource).toURI());
+        final BagSnapshot snapshot =
+                BagSnapshot.read("/" + dir.getName(), dir, context
+                        .getPropertyFactory(), values().getNameFactory());
+        assertNotNull(snapshot);
+        return snapshot;
+    }
+
+    private ValueFactories values() {
+        return context.getValueFactories();
+    }
+}
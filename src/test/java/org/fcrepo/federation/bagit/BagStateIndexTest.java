@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static java.util.Collections.singletonList;
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BagStateIndexTest {
+
+    File tempDir;
+
+    Path indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+        indexFile = tempDir.toPath().resolve(".bagit-state");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        final BagStateIndex testObj = new BagStateIndex(indexFile);
+        assertEquals(0, testObj.load());
+        testObj.put("a", new BagStateIndex.Entry(1, 42L, 1000L, 3000L));
+        testObj.put("b", new BagStateIndex.Entry(0, 0L, -1L, -1L));
+        assertTrue(testObj.save());
+        final BagStateIndex loaded = new BagStateIndex(indexFile);
+        assertEquals(2, loaded.load());
+        assertEquals(new BagStateIndex.Entry(1, 42L, 1000L, 3000L), loaded
+                .get("a"));
+        assertFalse(loaded.get("b").hasManifests());
+        assertTrue(loaded.isIndexFile(indexFile));
+    }
+
+    @Test
+    public void testCorruptIndexIsEmpty() throws IOException {
+        FileUtils.writeStringToFile(indexFile.toFile(), "not an index");
+        assertEquals(0, new BagStateIndex(indexFile).load());
+    }
+
+    @Test
+    public void testStateFollowsManifests() throws IOException {
+        final File bag = new File(tempDir, "bag");
+        new File(bag, "data").mkdirs();
+        final File manifest = new File(bag, "manifest-md5.txt");
+        touch(manifest);
+        final BagSnapshot snapshot =
+                new BagSnapshot("/bag", bag, "0.97", "UTF-8", null, new File(
+                        bag, "bag-info.txt"), FileStamp.MISSING,
+                        BagItExtraPropertiesStore.EMPTY,
+                        singletonList(new ManifestFile(manifest, "md5",
+                                false)), Collections.<ManifestFile> emptyList());
+        final BagStateIndex.Entry before =
+                BagStateIndex.stateOf(bag.toPath(), snapshot);
+        assertTrue(before.hasManifests());
+        assertEquals(before, BagStateIndex.stateOf(bag.toPath(), snapshot));
+        FileUtils.writeStringToFile(manifest, "d41d8cd98f00b204 data/a\n");
+        final BagStateIndex.Entry rewritten =
+                BagStateIndex.stateOf(bag.toPath(), snapshot);
+        assertFalse(before.equals(rewritten));
+        touch(new File(bag, "data/a"));
+        new File(bag, "data").setLastModified(System.currentTimeMillis() +
+                10000);
+        assertFalse(rewritten.equals(BagStateIndex.stateOf(bag.toPath(),
+                snapshot)));
+    }
+}
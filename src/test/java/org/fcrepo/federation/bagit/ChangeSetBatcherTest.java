@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.modeshape.jcr.federation.spi.ConnectorChangeSet;
+
+public class ChangeSetBatcherTest {
+
+    BagItConnector mockConnector;
+
+    ConnectorChangeSet mockChanges;
+
+    @Before
+    public void setUp() {
+        mockConnector = mock(BagItConnector.class);
+        mockChanges = mock(ConnectorChangeSet.class);
+        when(mockConnector.newChangeSet()).thenReturn(mockChanges);
+    }
+
+    @Test
+    public void testBatchBySize() {
+        final ChangeSetBatcher testObj =
+                new ChangeSetBatcher(mockConnector, 3, 60000L);
+        try {
+            for (int i = 0; i < 7; i++) {
+                testObj.add(removal("/bag" + i));
+            }
+            verify(mockChanges, times(2)).publish(null);
+            verify(mockConnector, times(3)).newChangeSet();
+            verify(mockChanges).nodeRemoved("/bag6", "/", "/bag6");
+            assertEquals(2, testObj.getBatches());
+            assertEquals(3.0, testObj.getMeanBatchSize(), 0.0);
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockChanges, times(3)).publish(null);
+        assertEquals(7, testObj.getChanges());
+        assertEquals(3, testObj.getLargestBatch());
+    }
+
+    @Test
+    public void testBatchByTime() {
+        final ChangeSetBatcher testObj =
+                new ChangeSetBatcher(mockConnector, 100, 100L);
+        try {
+            testObj.add(removal("/foo"));
+            testObj.add(removal("/bar"));
+            verify(mockChanges, never()).publish(null);
+            verify(mockChanges, timeout(5000)).publish(null);
+            assertEquals(2, testObj.getChanges());
+        } finally {
+            testObj.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoWindow() {
+        final ChangeSetBatcher testObj =
+                new ChangeSetBatcher(mockConnector, 100, 0L);
+        testObj.add(removal("/foo"));
+        testObj.add(removal("/bar"));
+        verify(mockChanges, times(2)).publish(null);
+        testObj.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void testAddDoesNotWaitForPublish() throws Exception {
+        final ChangeSetBatcher testObj =
+                new ChangeSetBatcher(mockConnector, 1, 60000L);
+        final CountDownLatch publishing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(final InvocationOnMock invocation)
+                throws InterruptedException {
+                publishing.countDown();
+                release.await();
+                return null;
+            }
+        }).when(mockChanges).publish(null);
+        final Thread first = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                testObj.add(removal("/foo"));
+            }
+        });
+        first.start();
+        try {
+            publishing.await();
+            // returns while the first batch is still being published
+            testObj.add(removal("/bar"));
+            verify(mockChanges, times(1)).publish(null);
+        } finally {
+            release.countDown();
+            first.join();
+        }
+        // the first publisher published the second batch too
+        verify(mockChanges, times(2)).publish(null);
+        assertEquals(2, testObj.getBatches());
+        testObj.shutdown();
+    }
+
+    private static ChangeSetBatcher.Change removal(final String id) {
+        return new ChangeSetBatcher.Change() {
+
+            @Override
+            public void record(final ConnectorChangeSet changes) {
+                changes.nodeRemoved(id, "/", id);
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DirectoryPagerTest {
+
+    private static final DirectoryStream.Filter<Path> ALL =
+            new DirectoryStream.Filter<Path>() {
+
+                @Override
+                public boolean accept(final Path entry) {
+                    return true;
+                }
+            };
+
+    File tempDir;
+
+    DirectoryPager testObj;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+        for (int i = 0; i < 25; i++) {
+            touch(new File(tempDir, "file" + i));
+        }
+        testObj = new DirectoryPager(4, 60000L);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        testObj.close();
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testPages() throws IOException {
+        final Set<Path> seen = new HashSet<Path>();
+        int offset = 0;
+        DirectoryPager.Page page;
+        do {
+            page = testObj.read(tempDir.toPath(), offset, 10, ALL);
+            seen.addAll(page.getEntries());
+            offset += page.getEntries().size();
+        } while (page.hasMore());
+        assertEquals(25, seen.size());
+        assertEquals(25, offset);
+        // the last page closed its stream
+        assertEquals(0, testObj.openCursors());
+    }
+
+    @Test
+    public void testCursorKeptForNextPage() throws IOException {
+        final DirectoryPager.Page first =
+                testObj.read(tempDir.toPath(), 0, 10, ALL);
+        assertTrue(first.hasMore());
+        assertEquals(1, testObj.openCursors());
+        final DirectoryPager.Page second =
+                testObj.read(tempDir.toPath(), 10, 10, ALL);
+        assertEquals(10, second.getEntries().size());
+        assertFalse(first.getEntries().contains(second.getEntries().get(0)));
+        assertEquals(1, testObj.openCursors());
+    }
+
+    @Test
+    public void testUnknownOffsetSkips() throws IOException {
+        final DirectoryPager.Page page =
+                testObj.read(tempDir.toPath(), 20, 10, ALL);
+        assertEquals(5, page.getEntries().size());
+        assertFalse(page.hasMore());
+    }
+
+    @Test
+    public void testIdleCursorClosedOnNextRead() throws Exception {
+        final DirectoryPager pager = new DirectoryPager(4, 50L);
+        try {
+            pager.read(tempDir.toPath(), 0, 10, ALL);
+            assertEquals(1, pager.openCursors());
+            Thread.sleep(100L);
+            // a read that parks nothing still closes the idle stream
+            pager.read(tempDir.toPath(), 20, 10, ALL);
+            assertEquals(0, pager.openCursors());
+        } finally {
+            pager.close();
+        }
+    }
+
+    @Test
+    public void testCursorBound() throws IOException {
+        for (int i = 0; i < 6; i++) {
+            testObj.read(tempDir.toPath(), 2 * i, 1, ALL);
+        }
+        assertEquals(4, testObj.openCursors());
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.fcrepo.federation.bagit.BagItConnectorTest.mockDocument;
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.infinispan.schematic.document.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DocumentCacheTest {
+
+    File tempDir;
+
+    File file;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+        file = new File(tempDir, "foo");
+        touch(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testGetCurrent() {
+        final DocumentCache testObj = new DocumentCache(10, 100L);
+        final Document doc = mock(Document.class);
+        final Document copy = mockDocument();
+        when(doc.clone()).thenReturn(copy);
+        testObj.put("/foo", doc, file, FileStamp.of(file), null, null, 1L);
+        assertSame(copy, testObj.get("/foo"));
+        assertNull(testObj.get("/bar"));
+    }
+
+    @Test
+    public void testGetStale() throws IOException {
+        final DocumentCache testObj = new DocumentCache(10, 100L);
+        testObj.put("/foo", mockDocument(), file, FileStamp.of(file),
+                null, null, 1L);
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        assertNull(testObj.get("/foo"));
+        assertEquals(0, testObj.size());
+    }
+
+    @Test
+    public void testGetStaleBagInfo() throws IOException {
+        final DocumentCache testObj = new DocumentCache(10, 100L);
+        final File bagInfo = new File(tempDir, "bag-info.txt");
+        testObj.put("/foo", mockDocument(), file, FileStamp.of(file),
+                new File[] {bagInfo}, new FileStamp[] {FileStamp
+                        .of(bagInfo)}, 1L);
+        touch(bagInfo);
+        assertNull(testObj.get("/foo"));
+    }
+
+    @Test
+    public void testSizeEviction() {
+        final DocumentCache testObj = new DocumentCache(2, 100L);
+        final FileStamp stamp = FileStamp.of(file);
+        testObj.put("/a", mockDocument(), file, stamp, null, null, 1L);
+        testObj.put("/b", mockDocument(), file, stamp, null, null, 1L);
+        // touch /a so that /b is the eldest
+        testObj.get("/a");
+        testObj.put("/c", mockDocument(), file, stamp, null, null, 1L);
+        assertEquals(2, testObj.size());
+        assertNull(testObj.get("/b"));
+    }
+
+    @Test
+    public void testWeightEviction() {
+        final DocumentCache testObj = new DocumentCache(10, 10L);
+        final FileStamp stamp = FileStamp.of(file);
+        testObj.put("/a", mockDocument(), file, stamp, null, null, 6L);
+        testObj.put("/b", mockDocument(), file, stamp, null, null, 6L);
+        assertEquals(1, testObj.size());
+        assertEquals(6L, testObj.weight());
+        assertNull(testObj.get("/a"));
+        // heavier than the whole cache
+        testObj.put("/c", mockDocument(), file, stamp, null, null, 11L);
+        assertNull(testObj.get("/c"));
+    }
+
+    @Test
+    public void testInvalidateTree() {
+        final DocumentCache testObj = new DocumentCache(10, 100L);
+        final FileStamp stamp = FileStamp.of(file);
+        testObj.put("/", mockDocument(), file, stamp, null, null, 1L);
+        testObj.put("/foo", mockDocument(), file, stamp, null, null, 1L);
+        testObj.put("/foo/bar", mockDocument(), file, stamp, null,
+                null, 1L);
+        testObj.put("/foobar", mockDocument(), file, stamp, null, null,
+                1L);
+        testObj.invalidateTree("/foo");
+        assertEquals(2, testObj.size());
+        assertNull(testObj.get("/foo/bar"));
+        testObj.invalidate("/");
+        assertEquals(1, testObj.size());
+    }
+}
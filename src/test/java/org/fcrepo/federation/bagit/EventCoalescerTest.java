@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.CREATED;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.MODIFIED;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.NONE;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.REFRESHED;
+import static org.fcrepo.federation.bagit.EventCoalescer.Kind.REMOVED;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.fcrepo.federation.bagit.EventCoalescer.Handler;
+import org.fcrepo.federation.bagit.EventCoalescer.Kind;
+import org.junit.Test;
+
+public class EventCoalescerTest {
+
+    final Path bag = Paths.get("/bags/foo");
+
+    @Test
+    public void testMerge() {
+        assertEquals(CREATED, CREATED.then(MODIFIED));
+        assertEquals(NONE, CREATED.then(REMOVED));
+        assertEquals(MODIFIED, REMOVED.then(CREATED));
+        assertEquals(REMOVED, MODIFIED.then(REMOVED));
+        assertEquals(REMOVED, REMOVED.then(MODIFIED));
+        assertEquals(MODIFIED, REFRESHED.then(MODIFIED));
+        assertEquals(CREATED, CREATED.then(REFRESHED));
+        assertEquals(REFRESHED, NONE.then(REFRESHED));
+        assertEquals(CREATED, NONE.then(CREATED));
+    }
+
+    @Test
+    public void testCoalesce() {
+        final Handler handler = mock(Handler.class);
+        final EventCoalescer testObj = new EventCoalescer(handler, 500L);
+        try {
+            testObj.add(bag, CREATED);
+            for (int i = 0; i < 1000; i++) {
+                testObj.add(bag, MODIFIED);
+            }
+            assertEquals(1, testObj.pendingBags());
+            verify(handler, timeout(5000)).handle(eq(bag), eq(CREATED),
+                    anyLong());
+            verify(handler, times(1)).handle(any(Path.class), any(Kind.class),
+                    anyLong());
+            assertEquals(0, testObj.pendingBags());
+        } finally {
+            testObj.shutdown();
+        }
+    }
+
+    @Test
+    public void testCreatedAndRemoved() {
+        final Handler handler = mock(Handler.class);
+        final EventCoalescer testObj = new EventCoalescer(handler, 60000L);
+        try {
+            testObj.add(bag, CREATED);
+            testObj.add(bag, REMOVED);
+            testObj.flush();
+            verify(handler, never()).handle(any(Path.class), any(Kind.class),
+                    anyLong());
+        } finally {
+            testObj.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoQuietPeriod() {
+        final Handler handler = mock(Handler.class);
+        final EventCoalescer testObj = new EventCoalescer(handler, 0L);
+        testObj.add(bag, CREATED);
+        testObj.add(bag, MODIFIED);
+        verify(handler).handle(eq(bag), eq(CREATED), anyLong());
+        verify(handler).handle(eq(bag), eq(MODIFIED), anyLong());
+        testObj.shutdown();
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileAttributesTest {
+
+    File tempDir;
+
+    File file;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+        file = new File(tempDir, "foo");
+        touch(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testReadFile() {
+        final FileAttributes attrs = FileAttributes.read(file.toPath());
+        assertNotNull(attrs);
+        assertTrue(attrs.isRegularFile());
+        assertFalse(attrs.isDirectory());
+        assertTrue(attrs.isAccessible());
+        assertEquals(file.length(), attrs.size());
+        assertEquals(FileStamp.of(file), attrs.stamp());
+        assertNotNull(attrs.owner());
+    }
+
+    @Test
+    public void testReadDirectory() {
+        final FileAttributes attrs = FileAttributes.read(tempDir.toPath());
+        assertTrue(attrs.isDirectory());
+        assertFalse(attrs.isRegularFile());
+        assertTrue(attrs.isAccessible());
+    }
+
+    @Test
+    public void testReadMissing() {
+        assertNull(FileAttributes.read(new File(tempDir, "bar").toPath()));
+    }
+
+    @Test
+    public void testReadCountsOneStat() {
+        final long before = IoStatistics.getStats();
+        FileAttributes.read(file.toPath());
+        assertEquals(before + 1, IoStatistics.getStats());
+    }
+
+    @Test
+    public void testReadableByTheBitThatApplies() throws IOException {
+        final int uid = (Integer) Files.getAttribute(file.toPath(), "unix:uid");
+        final int gid = (Integer) Files.getAttribute(file.toPath(), "unix:gid");
+        assumeTrue(uid != 0);
+        // our own file: only the owner bit counts
+        assertFalse(FileAttributes.isReadable(file.toPath(), uid, gid, 0044));
+        assertTrue(FileAttributes.isReadable(file.toPath(), uid, gid, 0400));
+        // someone else's: the owner bit is not ours
+        assertFalse(FileAttributes.isReadable(file.toPath(), uid + 1, gid,
+                0600));
+        assertTrue(FileAttributes.isReadable(file.toPath(), uid + 1, gid,
+                0644));
+        // in one of our groups: the group bit counts
+        assertTrue(FileAttributes.isReadable(file.toPath(), uid + 1, gid,
+                0640));
+        assertFalse(FileAttributes.isReadable(file.toPath(), uid + 1, gid,
+                0604));
+        // in a group of someone else's: the others bit counts
+        assertFalse(FileAttributes.isReadable(file.toPath(), uid + 1,
+                Integer.MAX_VALUE, 0640));
+        assertTrue(FileAttributes.isReadable(file.toPath(), uid + 1,
+                Integer.MAX_VALUE, 0604));
+    }
+}
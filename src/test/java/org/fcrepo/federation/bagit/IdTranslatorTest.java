@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IdTranslatorTest {
+
+    private final IdTranslator testObj = new IdTranslator("/bags/", '/');
+
+    @Test
+    public void testPathFor() {
+        assertEquals("/bags", testObj.pathFor("/"));
+        assertEquals("/bags/foo", testObj.pathFor("/foo"));
+        assertEquals("/bags/foo", testObj.pathFor("/foo/"));
+        assertEquals("/bags/foo/data/bar", testObj.pathFor("/foo/bar"));
+        assertEquals("/bags/foo/data/bar",
+                testObj.pathFor("/foo/bar/jcr:content"));
+    }
+
+    @Test
+    public void testPathForDeep() {
+        assertEquals("/bags/foo/data/a/b/c/d/e.txt", testObj
+                .pathFor("/foo/a/b/c/d/e.txt"));
+        assertEquals("/bags/foo/data/a/b/c/d/e.txt", testObj
+                .pathFor("/foo/a/b/c/d/e.txt/jcr:content"));
+        // only the data directory of the bag itself is implied
+        assertEquals("/bags/foo/data/data/data", testObj
+                .pathFor("/foo/data/data"));
+    }
+
+    @Test
+    public void testIdFor() {
+        assertEquals("/", testObj.idFor("/bags"));
+        assertEquals("/", testObj.idFor("/bags/"));
+        assertEquals("/foo", testObj.idFor("/bags/foo"));
+        assertEquals("/foo", testObj.idFor("/bags/foo/data"));
+        assertEquals("/foo/bar", testObj.idFor("/bags/foo/data/bar"));
+        assertEquals("/foo/bag-info.txt", testObj
+                .idFor("/bags/foo/bag-info.txt"));
+        assertEquals("/foo/database", testObj.idFor("/bags/foo/database"));
+    }
+
+    @Test
+    public void testIdForDeep() {
+        assertEquals("/foo/a/b/c/d/e.txt", testObj
+                .idFor("/bags/foo/data/a/b/c/d/e.txt"));
+        assertEquals("/foo/data/data", testObj
+                .idFor("/bags/foo/data/data/data"));
+    }
+
+    @Test
+    public void testIdForOutOfScope() {
+        assertNull(testObj.idFor("/other/foo"));
+        assertNull(testObj.idFor("/bags2/foo"));
+    }
+
+    @Test
+    public void testFilesystemRoot() {
+        final IdTranslator root = new IdTranslator("/", '/');
+        assertEquals("/", root.pathFor("/"));
+        assertEquals("/foo/data/bar", root.pathFor("/foo/bar"));
+        assertEquals("/", root.idFor("/"));
+        assertEquals("/foo/bar", root.idFor("/foo/data/bar"));
+    }
+
+    @Test
+    public void testOtherSeparator() {
+        final IdTranslator windows = new IdTranslator("C:\\bags\\", '\\');
+        assertEquals("C:\\bags\\foo\\data\\a\\b.txt", windows
+                .pathFor("/foo/a/b.txt"));
+        assertEquals("/foo/a/b.txt", windows
+                .idFor("C:\\bags\\foo\\data\\a\\b.txt"));
+        assertEquals("/foo", windows.idFor("C:\\bags\\foo\\data"));
+    }
+
+    @Test
+    public void testRoundTripEscapableNames() throws URISyntaxException {
+        final File root =
+                new File(getClass().getResource("/bags/v0_96").toURI());
+        final IdTranslator translator = new IdTranslator(root);
+        final List<File> files = new ArrayList<File>();
+        collect(new File(root, "bag-with-encoded-names/data"), files);
+        collect(new File(root, "bag-with-escapable-characters/data"), files);
+        assertTrue(files.size() > 10);
+        for (final File file : files) {
+            final String id = translator.idFor(file);
+            assertTrue(id, id.startsWith("/bag-with-e"));
+            assertEquals(file.getAbsolutePath(), translator.pathFor(id));
+        }
+        assertEquals("/bag-with-encoded-names/%7Edir2/test4.txt", translator
+                .idFor(new File(root,
+                        "bag-with-encoded-names/data/%7Edir2/test4.txt")));
+        assertEquals("/bag-with-escapable-characters/test file with spaces.txt",
+                translator.idFor(new File(root,
+                        "bag-with-escapable-characters/data/" +
+                                "test file with spaces.txt")));
+    }
+
+    private static void collect(final File dir, final List<File> files) {
+        for (final File file : dir.listFiles()) {
+            files.add(file);
+            if (file.isDirectory()) {
+                collect(file, files);
+            }
+        }
+    }
+}
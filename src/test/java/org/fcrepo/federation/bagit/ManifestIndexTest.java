@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ManifestIndexTest {
+
+    File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        final File manifest = new File(tempDir, "manifest-md5.txt");
+        final StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            lines.append("digest").append(i).append("  data/dir ")
+                    .append(i % 7).append("/file").append(i).append(".txt\r\n");
+        }
+        lines.append("special data/line%0Afeed.txt\n");
+        FileUtils.writeStringToFile(manifest, lines.toString(), UTF_8.name());
+        final ManifestIndex index =
+                ManifestIndex.open(manifest.toPath(), "md5", sidecar());
+        assertEquals(5001, index.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("digest" + i, index.digestOf("data/dir " + i % 7 +
+                    "/file" + i + ".txt"));
+        }
+        assertEquals("special", index.digestOf("data/line\nfeed.txt"));
+        assertNull(index.digestOf("data/dir 0/file1.txt"));
+        assertNull(index.digestOf("data/missing.txt"));
+    }
+
+    @Test
+    public void testSidecarIsRebuiltWhenTheManifestChanges()
+        throws IOException {
+        final File manifest = new File(tempDir, "manifest-md5.txt");
+        FileUtils.writeStringToFile(manifest, "aaa data/a.txt\n", UTF_8
+                .name());
+        final Path sidecar = sidecar();
+        ManifestIndex.open(manifest.toPath(), "md5", sidecar);
+        final long built = sidecar.toFile().lastModified();
+        sidecar.toFile().setLastModified(built - 10000);
+        ManifestIndex.open(manifest.toPath(), "md5", sidecar);
+        assertEquals("an up to date sidecar should be reused", built - 10000,
+                sidecar.toFile().lastModified());
+
+        FileUtils.writeStringToFile(manifest,
+                "bbb data/a.txt\nccc data/b.txt\n", UTF_8.name());
+        final ManifestIndex index =
+                ManifestIndex.open(manifest.toPath(), "md5", sidecar);
+        assertEquals(2, index.size());
+        assertEquals("bbb", index.digestOf("data/a.txt"));
+        assertEquals("ccc", index.digestOf("data/b.txt"));
+    }
+
+    @Test
+    public void testManifestRewrittenInPlace() throws IOException {
+        final File manifest = new File(tempDir, "manifest-md5.txt");
+        FileUtils.writeStringToFile(manifest,
+                "aaa data/a.txt\nbbb data/b.txt\n", UTF_8.name());
+        final ManifestIndex index =
+                ManifestIndex.open(manifest.toPath(), "md5", sidecar());
+        // truncated and written again, as bag tools do
+        FileUtils.writeStringToFile(manifest, "ccc data/a.txt\n", UTF_8
+                .name());
+        assertNull(index.digestOf("data/b.txt"));
+        assertEquals("ccc", index.digestOf("data/a.txt"));
+    }
+
+    @Test
+    public void testCacheReopensChangedManifests() throws IOException {
+        final File manifest = new File(tempDir, "manifest-md5.txt");
+        FileUtils.writeStringToFile(manifest, "aaa data/a.txt\n", UTF_8
+                .name());
+        final ManifestIndexCache cache =
+                new ManifestIndexCache(tempDir.toPath(), 1);
+        final ManifestIndex first = cache.get(manifest.toPath(), "md5");
+        assertSame(first, cache.get(manifest.toPath(), "md5"));
+
+        FileUtils.writeStringToFile(manifest, "bbb data/a.txt\n", UTF_8
+                .name());
+        manifest.setLastModified(manifest.lastModified() + 2000);
+        final ManifestIndex second = cache.get(manifest.toPath(), "md5");
+        assertNotSame(first, second);
+        assertEquals("bbb", second.digestOf("data/a.txt"));
+        assertEquals(1, cache.size());
+    }
+
+    private Path sidecar() {
+        return new File(tempDir, "manifest-md5.txt.idx").toPath();
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static java.util.Collections.singletonList;
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ManifestMonitorTest {
+
+    File tempDir;
+
+    BagItConnector mockConnector;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+        mockConnector = mock(BagItConnector.class);
+        when(mockConnector.getBagItDirectory()).thenReturn(tempDir);
+        when(mockConnector.getEventThreads()).thenReturn(1);
+        when(mockConnector.getBagRegistry()).thenReturn(new BagRegistry());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test(timeout = 2000)
+    public void testShutdownIsImmediate() throws Exception {
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        Thread.sleep(100);
+        testObj.shutdown();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+    }
+
+    @Test(timeout = 10000)
+    public void testWatchPayloadTree() throws Exception {
+        final File bag = new File(tempDir, "foo");
+        final File data = new File(bag, "data");
+        data.mkdirs();
+        final BagRegistry registry = new BagRegistry();
+        registry.add("foo");
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        when(mockConnector.isWatchingPayload()).thenReturn(true);
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        try {
+            // the root, the bag and its data/
+            awaitWatchKeys(testObj, 3);
+            final File deep = new File(new File(data, "sub"), "deep");
+            deep.mkdirs();
+            awaitWatchKeys(testObj, 5);
+            FileUtils.deleteDirectory(new File(data, "sub"));
+            awaitWatchKeys(testObj, 3);
+        } finally {
+            testObj.shutdown();
+            thread.join(1000);
+        }
+        assertEquals(0, testObj.getWatchKeyCount());
+    }
+
+    private static void awaitWatchKeys(final ManifestMonitor monitor,
+            final int count) throws InterruptedException {
+        while (monitor.getWatchKeyCount() != count) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStartupAnnouncesBagsWithManifests() throws Exception {
+        final BagRegistry registry = new BagRegistry();
+        for (int i = 0; i < 600; i++) {
+            new File(tempDir, "bag" + i).mkdirs();
+            registry.add("bag" + i);
+        }
+        final BagSnapshot snapshot =
+                new BagSnapshot("/bag", tempDir, "0.97", "UTF-8", null,
+                        new File(tempDir, "bag-info.txt"), FileStamp.MISSING,
+                        BagItExtraPropertiesStore.EMPTY, singletonList(
+                                new ManifestFile(new File(tempDir,
+                                        "manifest-md5.txt"), "md5", false)),
+                        Collections.<ManifestFile> emptyList());
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        when(mockConnector.getStartupScanThreads()).thenReturn(4);
+        when(mockConnector.refreshBagSnapshot(any(Path.class))).thenReturn(
+                snapshot);
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        try {
+            awaitWatchKeys(testObj, 601);
+            verify(mockConnector, timeout(5000).times(600)).fireNewBagEvent(
+                    any(Path.class));
+        } finally {
+            testObj.shutdown();
+            thread.join(1000);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStartupCatchesUpWithRegistry() throws Exception {
+        // loaded before the bag was added, as the registry is loaded before
+        // the monitor watches the root
+        final BagRegistry registry = new BagRegistry();
+        new File(tempDir, "late").mkdirs();
+        final BagSnapshot snapshot =
+                new BagSnapshot("/late", tempDir, "0.97", "UTF-8", null,
+                        new File(tempDir, "bag-info.txt"), FileStamp.MISSING,
+                        BagItExtraPropertiesStore.EMPTY, singletonList(
+                                new ManifestFile(new File(tempDir,
+                                        "manifest-md5.txt"), "md5", false)),
+                        Collections.<ManifestFile> emptyList());
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        when(mockConnector.refreshBagSnapshot(any(Path.class))).thenReturn(
+                snapshot);
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        try {
+            verify(mockConnector, timeout(5000)).fireNewBagEvent(
+                    tempDir.toPath().resolve("late"));
+        } finally {
+            testObj.shutdown();
+            thread.join(1000);
+        }
+        assertTrue(registry.contains("late"));
+    }
+
+    @Test(timeout = 10000)
+    public void testStartupReportsOnlyChangedBags() throws Exception {
+        final BagRegistry registry = new BagRegistry();
+        registry.add("same");
+        registry.add("new");
+        new File(tempDir, "same").mkdirs();
+        new File(tempDir, "new").mkdirs();
+        final BagSnapshot snapshot =
+                new BagSnapshot("/bag", tempDir, "0.97", "UTF-8", null,
+                        new File(tempDir, "bag-info.txt"), FileStamp.MISSING,
+                        BagItExtraPropertiesStore.EMPTY, singletonList(
+                                new ManifestFile(new File(tempDir,
+                                        "manifest-md5.txt"), "md5", false)),
+                        Collections.<ManifestFile> emptyList());
+        final BagStateIndex index =
+                new BagStateIndex(tempDir.toPath().resolve(".bagit-state"));
+        final Path same = tempDir.toPath().resolve("same");
+        index.put("same", BagStateIndex.stateOf(same, snapshot));
+        index.put("gone", BagStateIndex.stateOf(same, snapshot));
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        when(mockConnector.getBagStateIndex()).thenReturn(index);
+        when(mockConnector.refreshBagSnapshot(any(Path.class))).thenReturn(
+                snapshot);
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        try {
+            verify(mockConnector, timeout(5000)).fireRemoveBagEvent(
+                    tempDir.toPath().resolve("gone"));
+            verify(mockConnector, timeout(5000)).fireNewBagEvent(
+                    tempDir.toPath().resolve("new"));
+        } finally {
+            testObj.shutdown();
+            thread.join(1000);
+        }
+        verify(mockConnector, never()).fireNewBagEvent(same);
+        verify(mockConnector, never()).fireModifiedBagEvent(same);
+        assertEquals(2, index.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testReconcileRoot() throws Exception {
+        final BagRegistry registry = new BagRegistry();
+        registry.add("kept");
+        registry.add("gone");
+        new File(tempDir, "kept").mkdirs();
+        new File(tempDir, "added").mkdirs();
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        try {
+            testObj.scheduleReconcile(tempDir.toPath());
+            verify(mockConnector, timeout(5000)).unregisterBag(
+                    tempDir.toPath().resolve("gone"));
+            verify(mockConnector, timeout(5000)).registerBag(
+                    tempDir.toPath().resolve("added"));
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockConnector, never()).registerBag(
+                tempDir.toPath().resolve("kept"));
+        assertEquals(1, testObj.getReconciliations());
+    }
+
+    @Test(timeout = 10000)
+    public void testPayloadChangesAreReportedByPath() throws Exception {
+        final File bag = new File(tempDir, "foo");
+        final File data = new File(bag, "data");
+        data.mkdirs();
+        final BagRegistry registry = new BagRegistry();
+        registry.add("foo");
+        final BagSnapshot snapshot = nodeSnapshot(bag);
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        when(mockConnector.isWatchingPayload()).thenReturn(true);
+        when(mockConnector.cachedBagSnapshot(any(Path.class))).thenReturn(
+                snapshot);
+        when(mockConnector.refreshBagSnapshot(any(Path.class))).thenReturn(
+                snapshot);
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        try {
+            awaitWatchKeys(testObj, 3);
+            touch(new File(data, "new.txt"));
+            verify(mockConnector, timeout(5000)).firePayloadEvents(
+                    Collections.singletonMap(data.toPath().resolve("new.txt"),
+                            EventCoalescer.Kind.CREATED));
+        } finally {
+            testObj.shutdown();
+            thread.join(1000);
+        }
+        verify(mockConnector, never()).fireModifiedBagEvent(bag.toPath());
+    }
+
+    @Test(timeout = 10000)
+    public void testRemovedBagWithPayloadTree() throws Exception {
+        final File bag = new File(tempDir, "foo");
+        final File data = new File(bag, "data");
+        new File(new File(data, "sub"), "deep").mkdirs();
+        touch(new File(new File(data, "sub"), "file.txt"));
+        final BagRegistry registry = new BagRegistry();
+        registry.add("foo");
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        when(mockConnector.isWatchingPayload()).thenReturn(true);
+        when(mockConnector.getEventQuietMillis()).thenReturn(500L);
+        when(mockConnector.cachedBagSnapshot(any(Path.class))).thenReturn(
+                nodeSnapshot(bag));
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        try {
+            awaitWatchKeys(testObj, 5);
+            // the payload keys go invalid and are reconciled within the
+            // quiet period of the bag's removal
+            FileUtils.deleteDirectory(bag);
+            verify(mockConnector, timeout(5000).atLeastOnce())
+                    .fireRemoveBagEvent(bag.toPath());
+        } finally {
+            testObj.shutdown();
+            thread.join(1000);
+        }
+        verify(mockConnector, never()).fireModifiedBagEvent(bag.toPath());
+    }
+
+    @Test(timeout = 10000)
+    public void testReconcileBagGainedManifest() throws Exception {
+        final Path bag = reconcilableBag();
+        when(mockConnector.cachedBagSnapshot(bag)).thenReturn(
+                snapshot(bag.toFile(), FileStamp.MISSING, false));
+        when(mockConnector.refreshBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        try {
+            testObj.scheduleReconcile(bag);
+            verify(mockConnector, timeout(5000)).fireNewBagEvent(bag);
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockConnector, never()).fireRemoveBagEvent(bag);
+    }
+
+    @Test(timeout = 10000)
+    public void testReconcileBagLostManifest() throws Exception {
+        final Path bag = reconcilableBag();
+        when(mockConnector.cachedBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        when(mockConnector.refreshBagSnapshot(bag)).thenReturn(
+                snapshot(bag.toFile(), FileStamp.MISSING, false));
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        try {
+            testObj.scheduleReconcile(bag);
+            verify(mockConnector, timeout(5000)).fireRemoveBagEvent(bag);
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockConnector, never()).fireNewBagEvent(bag);
+    }
+
+    @Test(timeout = 10000)
+    public void testReconcileBagChangedBagInfo() throws Exception {
+        final Path bag = reconcilableBag();
+        when(mockConnector.cachedBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        when(mockConnector.refreshBagSnapshot(bag)).thenReturn(
+                snapshot(bag.toFile(), new FileStamp(1000L, 10L), true));
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        try {
+            testObj.scheduleReconcile(bag);
+            verify(mockConnector, timeout(5000)).fireModifiedBagEvent(bag);
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockConnector, never()).fireRemoveBagEvent(bag);
+        assertEquals(1, testObj.getReconciliations());
+    }
+
+    @Test(timeout = 10000)
+    public void testReconcileBagUnchanged() throws Exception {
+        final Path bag = reconcilableBag();
+        when(mockConnector.cachedBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        when(mockConnector.refreshBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        try {
+            testObj.scheduleReconcile(bag);
+            verify(mockConnector, timeout(5000)).refreshBagSnapshot(bag);
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockConnector, never()).fireNewBagEvent(bag);
+        verify(mockConnector, never()).fireModifiedBagEvent(bag);
+        verify(mockConnector, never()).fireRemoveBagEvent(bag);
+    }
+
+    @Test(timeout = 10000)
+    public void testReconcileDeletedPayloadDirectory() throws Exception {
+        final Path bag = reconcilableBag();
+        final Path gone = bag.resolve("data").resolve("gone");
+        when(mockConnector.isWatchingPayload()).thenReturn(true);
+        when(mockConnector.cachedBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        when(mockConnector.refreshBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        try {
+            testObj.scheduleReconcile(gone);
+            verify(mockConnector, timeout(5000)).firePayloadEvents(
+                    Collections.singletonMap(gone,
+                            EventCoalescer.Kind.REMOVED));
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockConnector).invalidatePayload(gone);
+        verify(mockConnector, never()).fireModifiedBagEvent(bag);
+        verify(mockConnector, never()).fireRemoveBagEvent(bag);
+    }
+
+    @Test(timeout = 10000)
+    public void testReconcilePayloadDirectory() throws Exception {
+        final Path bag = reconcilableBag();
+        final Path data = bag.resolve("data");
+        touch(data.resolve("kept.txt").toFile());
+        touch(data.resolve("new.txt").toFile());
+        when(mockConnector.isWatchingPayload()).thenReturn(true);
+        when(mockConnector.knownChildren(data)).thenReturn(
+                new HashSet<String>(Arrays.asList("kept.txt", "gone.txt")));
+        when(mockConnector.cachedBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        when(mockConnector.refreshBagSnapshot(bag)).thenReturn(
+                nodeSnapshot(bag.toFile()));
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        final Map<Path, EventCoalescer.Kind> expected =
+                new HashMap<Path, EventCoalescer.Kind>();
+        expected.put(data.resolve("new.txt"), EventCoalescer.Kind.CREATED);
+        expected.put(data.resolve("gone.txt"), EventCoalescer.Kind.REMOVED);
+        try {
+            testObj.scheduleReconcile(data);
+            verify(mockConnector, timeout(5000)).firePayloadEvents(expected);
+        } finally {
+            testObj.shutdown();
+        }
+        verify(mockConnector).invalidatePayload(data);
+        verify(mockConnector, never()).fireModifiedBagEvent(bag);
+    }
+
+    /**
+     * @return a registered bag "foo" with an empty data/
+     */
+    private Path reconcilableBag() {
+        final File bag = new File(tempDir, "foo");
+        new File(bag, "data").mkdirs();
+        final BagRegistry registry = new BagRegistry();
+        registry.add("foo");
+        when(mockConnector.getBagRegistry()).thenReturn(registry);
+        return bag.toPath();
+    }
+
+    /**
+     * @return a snapshot of a bag with a payload manifest
+     */
+    private static BagSnapshot nodeSnapshot(final File bag) {
+        return snapshot(bag, FileStamp.MISSING, true);
+    }
+
+    private static BagSnapshot snapshot(final File bag,
+            final FileStamp bagInfoStamp, final boolean manifest) {
+        return new BagSnapshot("/" + bag.getName(), bag, "0.97", "UTF-8",
+                null, new File(bag, "bag-info.txt"), bagInfoStamp,
+                BagItExtraPropertiesStore.EMPTY, manifest ? singletonList(
+                        new ManifestFile(new File(bag, "manifest-md5.txt"),
+                                "md5", false)) : Collections
+                        .<ManifestFile> emptyList(), Collections
+                        .<ManifestFile> emptyList());
+    }
+
+    @Test(timeout = 2000)
+    public void testShutdownBeforeRun() throws Exception {
+        final ManifestMonitor testObj = new ManifestMonitor(mockConnector);
+        testObj.shutdown();
+        final Thread thread = new Thread(testObj);
+        thread.start();
+        thread.join(1000);
+        assertFalse(thread.isAlive());
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ManifestReaderTest {
+
+    File tempDir;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        final File manifest = new File(tempDir, "manifest-md5.txt");
+        FileUtils.writeStringToFile(manifest,
+                "aaa  data/with space.txt\n" + "bbb\tdata/tab\there.txt\r\n" +
+                        "\n" + "ccc data/line%0Afeed%25%41.txt\n" +
+                        "ddd data/café.txt", UTF_8.name());
+        final List<String> entries = new ArrayList<String>();
+        final List<Long> offsets = new ArrayList<Long>();
+        assertEquals(4, ManifestReader.read(manifest.toPath(), "md5",
+                new ManifestReader.Handler() {
+
+                    @Override
+                    public boolean entry(final ManifestReader.Entry entry) {
+                        entries.add(entry.getAlgorithm() + " " +
+                                entry.getDigest() + " [" + entry.getPath() +
+                                "]");
+                        offsets.add(entry.getOffset());
+                        return true;
+                    }
+                }));
+        assertEquals(asList("md5 aaa [data/with space.txt]",
+                "md5 bbb [data/tab\there.txt]",
+                "md5 ccc [data/line\nfeed%%41.txt]",
+                "md5 ddd [data/café.txt]"), entries);
+        assertEquals(asList(0L, 25L, 49L, 80L), offsets);
+    }
+
+    @Test
+    public void testLinesLongerThanTheBuffer() throws IOException {
+        final File manifest = new File(tempDir, "manifest-sha1.txt");
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append(i).append(' ').append("data/");
+            for (int j = 0; j < i; j++) {
+                content.append('x');
+            }
+            content.append('\n');
+        }
+        FileUtils.writeStringToFile(manifest, content.toString(), UTF_8
+                .name());
+        final List<String> paths = new ArrayList<String>();
+        assertEquals(100, ManifestReader.read(manifest.toPath(), "sha1",
+                new ManifestReader.Handler() {
+
+                    @Override
+                    public boolean entry(final ManifestReader.Entry entry) {
+                        paths.add(entry.getPath().toString());
+                        return true;
+                    }
+                }, 16));
+        assertEquals("data/", paths.get(0));
+        assertEquals(104, paths.get(99).length());
+    }
+
+    @Test
+    public void testStopEarly() throws IOException {
+        final File manifest = new File(tempDir, "manifest-md5.txt");
+        FileUtils.writeStringToFile(manifest, "a data/1\nb data/2\nc data/3\n");
+        assertEquals(2, ManifestReader.read(manifest.toPath(), "md5",
+                new ManifestReader.Handler() {
+
+                    @Override
+                    public boolean entry(final ManifestReader.Entry entry) {
+                        return !entry.getPath().toString().equals("data/2");
+                    }
+                }));
+    }
+}
@@ -49,6 +49,14 @@ public class ManifestUtilTest {
                 ManifestUtil.isManifest(input));
     }
 
+    @Test
+    public void testIsManifestSha() {
+        assertTrue(ManifestUtil.isManifest("manifest-sha1.txt"));
+        assertTrue(ManifestUtil.isManifest("manifest-sha256.txt"));
+        assertTrue(ManifestUtil.isTagManifest("tagmanifest-sha512.txt"));
+        assertFalse(ManifestUtil.isTagManifest("manifest-sha256.txt"));
+    }
+
     @Test
     public void testIsTagManifest() throws IOException {
         final File input = mock(File.class);
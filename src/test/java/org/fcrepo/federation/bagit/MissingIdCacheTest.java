@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MissingIdCacheTest {
+
+    @Test
+    public void testAddMissing() {
+        final MissingIdCache testObj = new MissingIdCache(10, 60000L);
+        testObj.addMissing("/foo/bar");
+        testObj.addMissing("/foo/bar");
+        assertTrue(testObj.isMissing("/foo/bar"));
+        assertFalse(testObj.isMissing("/foo/baz"));
+        assertEquals(1, testObj.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        final MissingIdCache testObj = new MissingIdCache(10, 60000L);
+        testObj.addMissing("/foo/bar");
+        testObj.addMissing("/baz");
+        testObj.invalidate("/foo");
+        assertFalse(testObj.isMissing("/foo/bar"));
+        assertTrue(testObj.isMissing("/baz"));
+    }
+
+    @Test
+    public void testInvalidateTree() {
+        final MissingIdCache testObj = new MissingIdCache(10, 60000L);
+        testObj.addMissing("/foo/bar");
+        testObj.addMissing("/foo/a/b/c");
+        testObj.addMissing("/foobar/x");
+        testObj.invalidateTree("/foo");
+        assertFalse(testObj.isMissing("/foo/bar"));
+        assertFalse(testObj.isMissing("/foo/a/b/c"));
+        assertTrue(testObj.isMissing("/foobar/x"));
+        assertEquals(1, testObj.size());
+    }
+
+    @Test
+    public void testBound() {
+        final MissingIdCache testObj = new MissingIdCache(2, 60000L);
+        testObj.addMissing("/a/x");
+        testObj.addMissing("/b/x");
+        testObj.addMissing("/c/x");
+        assertFalse(testObj.isMissing("/a/x"));
+        assertTrue(testObj.isMissing("/c/x"));
+        assertEquals(2, testObj.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        final MissingIdCache testObj = new MissingIdCache(10, -1L);
+        testObj.addMissing("/foo/bar");
+        assertFalse(testObj.isMissing("/foo/bar"));
+        assertEquals(0, testObj.size());
+    }
+
+    @Test
+    public void testDisabled() {
+        final MissingIdCache testObj = new MissingIdCache(0, 60000L);
+        testObj.addMissing("/foo/bar");
+        assertFalse(testObj.isMissing("/foo/bar"));
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OwnerCacheTest {
+
+    File tempDir;
+
+    File file;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+        file = new File(tempDir, "foo");
+        touch(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testResolvesOncePerUid() throws IOException {
+        final OwnerCache testObj = new OwnerCache(60000L);
+        final String expected = Files.getOwner(file.toPath()).getName();
+        final long before = IoStatistics.getOwnerLookups();
+        assertEquals(expected, testObj.ownerOf(attributes(file, 1000)));
+        assertEquals(expected, testObj.ownerOf(attributes(tempDir, 1000)));
+        assertEquals(before + 1, IoStatistics.getOwnerLookups());
+        assertEquals(1, testObj.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        final OwnerCache testObj = new OwnerCache(-1L);
+        final long before = IoStatistics.getOwnerLookups();
+        testObj.ownerOf(attributes(file, 1000));
+        testObj.ownerOf(attributes(file, 1000));
+        assertEquals(before + 2, IoStatistics.getOwnerLookups());
+    }
+
+    @Test
+    public void testUnknownIsCached() {
+        final OwnerCache testObj = new OwnerCache(60000L);
+        final File missing = new File(tempDir, "bar");
+        final long before = IoStatistics.getOwnerLookups();
+        assertNull(testObj.ownerOf(attributes(missing, 1001)));
+        assertNull(testObj.ownerOf(attributes(missing, 1001)));
+        assertEquals(before + 1, IoStatistics.getOwnerLookups());
+    }
+
+    @Test
+    public void testNoUidResolvesOncePerDirectory() throws IOException {
+        final OwnerCache testObj = new OwnerCache(60000L);
+        final File other = new File(tempDir, "bar");
+        touch(other);
+        final long before = IoStatistics.getOwnerLookups();
+        assertNotNull(testObj.ownerOf(attributes(file, -1)));
+        assertNotNull(testObj.ownerOf(attributes(other, -1)));
+        assertEquals(before + 1, IoStatistics.getOwnerLookups());
+        // another directory is looked up on its own
+        assertNotNull(testObj.ownerOf(attributes(tempDir, -1)));
+        assertEquals(before + 2, IoStatistics.getOwnerLookups());
+        assertEquals(2, testObj.size());
+    }
+
+    @Test
+    public void testReadExposesUid() {
+        final FileAttributes attrs = FileAttributes.read(file.toPath());
+        assertNotNull(new OwnerCache(60000L).ownerOf(attrs));
+    }
+
+    private static FileAttributes attributes(final File file, final int uid) {
+        return new FileAttributes(file.toPath(), uid, true, false, true, 0L,
+                0L, null);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.fcrepo.federation.bagit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.fcrepo.federation.bagit.BagItConnectorTest.touch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PollingScannerTest {
+
+    File tempDir;
+
+    File bag;
+
+    PollingScanner testObj;
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir =
+                File.createTempFile("bagit", Long.toString(System.nanoTime()));
+        tempDir.delete();
+        tempDir.mkdirs();
+        bag = new File(tempDir, "bag");
+        new File(bag, "data").mkdirs();
+        touch(new File(bag, "manifest-md5.txt"));
+        touch(new File(bag, "bag-info.txt"));
+        testObj = new PollingScanner(tempDir.toPath(), 2, true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        testObj.shutdown();
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void testFirstScanIsSnapshot() throws Exception {
+        assertTrue(testObj.scan().isEmpty());
+        assertEquals(1, testObj.getBagCount());
+        assertTrue(testObj.scan().isEmpty());
+    }
+
+    @Test
+    public void testTagFileChanges() throws Exception {
+        testObj.scan();
+        touch(new File(bag, "manifest-sha1.txt"));
+        FileUtils.writeStringToFile(new File(bag, "bag-info.txt"),
+                "Source-Organization: here\n");
+        new File(bag, "manifest-md5.txt").delete();
+        age(bag);
+        final Set<String> changes = describe(testObj.scan());
+        assertEquals(3, changes.size());
+        assertTrue(changes.contains(ENTRY_CREATE.name() + " bag/" +
+                "manifest-sha1.txt"));
+        assertTrue(changes.contains(ENTRY_MODIFY.name() + " bag/" +
+                "bag-info.txt"));
+        assertTrue(changes.contains(ENTRY_DELETE.name() + " bag/" +
+                "manifest-md5.txt"));
+    }
+
+    @Test
+    public void testPayloadChanges() throws Exception {
+        testObj.scan();
+        final File data = new File(bag, "data");
+        new File(data, "sub/deeper").mkdirs();
+        age(data);
+        assertEquals(describe(testObj.scan()), singleton(ENTRY_CREATE.name() +
+                " bag/data/sub"));
+        assertTrue(testObj.scan().isEmpty());
+        FileUtils.deleteDirectory(new File(data, "sub"));
+        age(data);
+        assertEquals(describe(testObj.scan()), singleton(ENTRY_DELETE.name() +
+                " bag/data/sub"));
+    }
+
+    @Test
+    public void testPayloadFileChanges() throws Exception {
+        final File data = new File(bag, "data");
+        final File kept = new File(data, "kept.txt");
+        touch(kept);
+        touch(new File(data, "gone.txt"));
+        testObj.scan();
+        // rewritten in place: the directory does not change, and the files
+        // are not stat'ed until the manifest does
+        FileUtils.writeStringToFile(kept, "rewritten");
+        assertTrue(testObj.scan().isEmpty());
+        FileUtils.writeStringToFile(new File(bag, "manifest-md5.txt"),
+                "abc data/kept.txt\n");
+        final Set<String> rewritten = describe(testObj.scan());
+        assertEquals(2, rewritten.size());
+        assertTrue(rewritten.contains(ENTRY_MODIFY.name() +
+                " bag/manifest-md5.txt"));
+        assertTrue(rewritten.contains(ENTRY_MODIFY.name() +
+                " bag/data/kept.txt"));
+        new File(data, "gone.txt").delete();
+        touch(new File(data, "new.txt"));
+        age(data);
+        final Set<String> changes = describe(testObj.scan());
+        assertEquals(2, changes.size());
+        assertTrue(changes.contains(ENTRY_DELETE.name() +
+                " bag/data/gone.txt"));
+        assertTrue(changes.contains(ENTRY_CREATE.name() + " bag/data/new.txt"));
+        assertTrue(testObj.scan().isEmpty());
+    }
+
+    @Test
+    public void testUnchangedPayloadIsNotStated() throws Exception {
+        final File data = new File(bag, "data");
+        for (int i = 0; i < 10; i++) {
+            touch(new File(data, "file" + i));
+        }
+        testObj.scan();
+        final long before = IoStatistics.getStats();
+        assertTrue(testObj.scan().isEmpty());
+        // the root, the bag, its two tag files and data/
+        assertEquals(before + 5, IoStatistics.getStats());
+    }
+
+    @Test
+    public void testBagsAddedAndRemoved() throws Exception {
+        testObj.scan();
+        new File(tempDir, "other").mkdirs();
+        age(tempDir);
+        assertEquals(describe(testObj.scan()), singleton(ENTRY_CREATE.name() +
+                " other"));
+        assertEquals(2, testObj.getBagCount());
+        FileUtils.deleteDirectory(bag);
+        age(tempDir);
+        assertEquals(describe(testObj.scan()), singleton(ENTRY_DELETE.name() +
+                " bag"));
+        assertEquals(1, testObj.getBagCount());
+    }
+
+    /**
+     * Moves the modification time of a changed directory well clear of the
+     * previous scan, which may have seen it within the same millisecond.
+     */
+    private static void age(final File dir) {
+        dir.setLastModified(System.currentTimeMillis() + 10000);
+    }
+
+    private static Set<String> singleton(final String change) {
+        final Set<String> result = new HashSet<String>();
+        result.add(change);
+        return result;
+    }
+
+    private Set<String> describe(final List<PollingScanner.Change> changes) {
+        final Set<String> result = new HashSet<String>();
+        for (final PollingScanner.Change change : changes) {
+            result.add(change.getKind().name() + " " +
+                    tempDir.toPath().relativize(change.getPath()));
+        }
+        return result;
+    }
+}
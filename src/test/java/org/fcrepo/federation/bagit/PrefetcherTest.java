@@ -0,0 +1,88 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.infinispan.schematic.document.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrefetcherTest {
+
+    BagItConnector mockConnector;
+
+    Prefetcher testObj;
+
+    @Before
+    public void setUp() {
+        mockConnector = mock(BagItConnector.class);
+        testObj = new Prefetcher(mockConnector, 2, 1);
+    }
+
+    @After
+    public void tearDown() {
+        testObj.shutdown();
+    }
+
+    @Test
+    public void testPrefetch() throws InterruptedException {
+        final Document ds = mock(Document.class);
+        final Map<String, Document> built =
+                new LinkedHashMap<String, Document>();
+        built.put("/foo/a", ds);
+        built.put("/foo/b", mock(Document.class));
+        when(mockConnector.prefetchDocuments(asList("/foo/a", "/foo/b")))
+                .thenReturn(built);
+        when(mockConnector.contentIdOf("/foo/a", ds)).thenReturn(
+                "/foo/a/jcr:content");
+        when(mockConnector.prefetchDocuments(asList("/foo/a/jcr:content")))
+                .thenReturn(
+                        Collections.singletonMap("/foo/a/jcr:content",
+                                mock(Document.class)));
+        testObj.prefetch("/foo", asList("/foo/a", "/foo/b", "/foo/c"));
+        for (int i = 0; i < 500 && testObj.getPrefetched() < 3; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, testObj.getPrefetched());
+        verify(mockConnector).prefetchDocuments(asList("/foo/a/jcr:content"));
+        testObj.requested("/foo/a");
+        testObj.requested("/foo/a");
+        testObj.requested("/foo/x");
+        assertEquals(1, testObj.getHits());
+        assertEquals(1.0 / 3, testObj.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testNothingToPrefetch() {
+        testObj.prefetch("/foo", Collections.<String> emptyList());
+        verify(mockConnector, never()).prefetchDocuments(
+                anyCollectionOf(String.class));
+        assertEquals(0.0, testObj.getHitRate(), 0.0);
+    }
+}
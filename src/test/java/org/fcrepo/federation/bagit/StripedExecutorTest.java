@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.fcrepo.federation.bagit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StripedExecutorTest {
+
+    @Test
+    public void testOrderPerKey() throws InterruptedException {
+        final StripedExecutor testObj = new StripedExecutor(4, "test-%d");
+        final List<List<Integer>> seen = new ArrayList<List<Integer>>();
+        for (int k = 0; k < 8; k++) {
+            seen.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        for (int i = 0; i < 100; i++) {
+            for (int k = 0; k < 8; k++) {
+                final List<Integer> list = seen.get(k);
+                final int value = i;
+                testObj.execute("bag" + k, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        list.add(value);
+                    }
+                });
+            }
+        }
+        testObj.shutdown();
+        assertTrue(testObj.awaitTermination(10, TimeUnit.SECONDS));
+        for (final List<Integer> list : seen) {
+            assertEquals(100, list.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, list.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void testStripeOf() {
+        final StripedExecutor testObj = new StripedExecutor(3, "test-%d");
+        final StripedExecutor single = new StripedExecutor(0, "single-%d");
+        try {
+            assertEquals(testObj.stripeOf("foo"), testObj.stripeOf("foo"));
+            assertEquals(1, single.getStripes());
+            assertEquals(0, single.stripeOf("foo"));
+        } finally {
+            testObj.shutdownNow();
+            single.shutdownNow();
+        }
+    }
+}